@@ -0,0 +1,46 @@
+package org.hamster.carz;
+
+/**
+ * The battery telemetry frame: 'B' mv1 mv0
+ * <p/>
+ * Battery voltage in millivolts, unsigned 16 bit big-endian.
+ */
+public final class BatteryFrame {
+    public static final int TAG = 'B';
+    public static final int LENGTH = 3;
+    /**
+     * Nothing on the car runs above this. Higher values are misaligned frames.
+     */
+    public static final int MAX_MILLIVOLTS = 30000;
+
+    static final TelemetryFrameSplitter.FrameValidator VALIDATOR =
+            new TelemetryFrameSplitter.FrameValidator() {
+                @Override
+                public boolean isValid(ByteRingBuffer ring, int length) {
+                    return (ring.peek(1) << 8 | ring.peek(2)) <= MAX_MILLIVOLTS;
+                }
+            };
+
+    /**
+     * One channel, millivolts.
+     */
+    public static final TelemetryDecoder DECODER = new TelemetryDecoder() {
+        @Override
+        public int getChannelCount() {
+            return 1;
+        }
+
+        @Override
+        public int getFrameLength() {
+            return LENGTH;
+        }
+
+        @Override
+        public void decode(TelemetryFrameBatch frames, int index, int[] values) {
+            values[0] = frames.getByte(index, 1) << 8 | frames.getByte(index, 2);
+        }
+    };
+
+    private BatteryFrame() {
+    }
+}
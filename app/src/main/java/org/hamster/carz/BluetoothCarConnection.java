@@ -1,98 +1,368 @@
 package org.hamster.carz;
 
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothSocket;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.util.Log;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Created by Hamster on 2015/12/19.
  * <p/>
  * Represents a connection to a car. Handles data transfer.
+ * <p/>
+ * The bytes go through a {@link CarTransport}, RFCOMM by default.
+ * <p/>
+ * Right after the transport opens we offer {@link ProtocolV2}. If the car doesn't answer
+ * within HANDSHAKE_TIMEOUT_MS it's old firmware and we stay with the legacy frames.
+ * <p/>
+ * On v2 the writer also pings the car every PING_INTERVAL_MS, see {@link LinkQualityMonitor}.
+ * Legacy firmware can't echo, so there we only know when we last heard from the car.
  */
 public class BluetoothCarConnection {
     private static final String TAG = "Carz_BTCarConn";
-    private BluetoothDevice mBluetoothDevice;
-    private BluetoothSocket mSocket;
-    private OutputStream mOutputStream;
-    private boolean stopDetectionFlag;
-    private InputStream mInputStream;
+    private static final boolean VDBG = false;
+    private static final int RX_BUFFER_SIZE = 1024;
+    private static final int MAX_FRAMES_PER_BATCH = 64;
+    private static final int HANDSHAKE_TIMEOUT_MS = 300;
+    /**
+     * Offered in HELLO. Enough for ControlTickScheduler.RATE_100HZ.
+     */
+    private static final int REQUESTED_MAX_RATE_HZ = 100;
+    private static final long PING_INTERVAL_MS = 250;
+    private CarTransport mTransport;
+    private volatile boolean stopDetectionFlag;
+    /**
+     * Set by cancelConnect(), so connect() can tell a cancellation from a real failure.
+     */
+    private volatile boolean mConnectCancelled;
     private String mErrorMessage;
-    private CarConnectionState mLastState = CarConnectionState.STATE_DISCONNECTED;
-    private CarConnectionState mState = CarConnectionState.STATE_DISCONNECTED;
+    private volatile CarConnectionState mLastState = CarConnectionState.STATE_DISCONNECTED;
+    private volatile CarConnectionState mState = CarConnectionState.STATE_DISCONNECTED;
     private ConnectionStateChangeListener mStateListener;
     private DataReceivedListener mDataListener;
-    private UUID SPP_UUID = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
     private Thread detectionThread;
+    /**
+     * Owns the writing side of mTransport. Commands reach it through mCommandSlot only.
+     */
+    private Thread mWriterThread;
+    private final LatestCommandSlot mCommandSlot = new LatestCommandSlot();
+    /**
+     * Input event to write() completion, recorded by the writer thread.
+     */
+    private final LatencyHistogram mCommandLatency = new LatencyHistogram();
+    /**
+     * Receiving side, owned by detectionThread.
+     */
+    private final ByteRingBuffer mRxRing = new ByteRingBuffer(RX_BUFFER_SIZE);
+    private final TelemetryFrameSplitter mFrameSplitter = new TelemetryFrameSplitter();
+    private final TelemetryFrameBatch mFrameBatch =
+            new TelemetryFrameBatch(MAX_FRAMES_PER_BATCH, RX_BUFFER_SIZE);
+    private final ProtocolV2.Unwrapper mV2Unwrapper = new ProtocolV2.Unwrapper();
+    private volatile int mProtocolVersion = ProtocolV2.LEGACY_VERSION;
+    /**
+     * Max commands per second the car accepts, 0 for no limit. Enforced by the writer thread.
+     */
+    private volatile int mMaxFrameRateHz;
+    /**
+     * Not null while connect() waits for HELLO_ACK.
+     */
+    private volatile CountDownLatch mHandshakeLatch;
+    private int mAckVersion;
+    private int mAckMaxRateHz;
+    /**
+     * Null unless recording. Fed by the writer and the detection thread.
+     */
+    private volatile SessionRecorder mRecorder;
+    /**
+     * Fed by the writer (pings) and the detection thread (echoes, any read).
+     */
+    private final LinkQualityMonitor mLinkQuality = new LinkQualityMonitor();
 
     BluetoothCarConnection(@NonNull BluetoothDevice device,
                            @Nullable ConnectionStateChangeListener stateListener,
                            @Nullable DataReceivedListener dataListener) {
+        mFrameSplitter.setFrameUnwrapper(ProtocolV2.SOF, mV2Unwrapper);
         update(device, stateListener, dataListener);
     }
 
+    BluetoothCarConnection(@NonNull CarTransport transport,
+                           @Nullable ConnectionStateChangeListener stateListener,
+                           @Nullable DataReceivedListener dataListener) {
+        mFrameSplitter.setFrameUnwrapper(ProtocolV2.SOF, mV2Unwrapper);
+        update(transport, stateListener, dataListener);
+    }
+
+    /**
+     * Blocks until connected or failed. Don't call on UI thread.
+     */
     public void connect() {
+        // Threads from a previous (dropped) connection must be gone before we reuse the slot
+        stopWorkers();
         // Initialize it on every connection
         detectionThread = new Thread(new Runnable() {
             @Override
             public void run() {
+                mRxRing.clear();
+                mFrameBatch.clear();
+                mFrameSplitter.reset();
+                mV2Unwrapper.reset();
                 while (!stopDetectionFlag) {
                     try {
-                        int data = mInputStream.read();
-                        if (mDataListener != null) {
-                            mDataListener.onDataReceived(data);
-                        }
+                        /* Read as much as the stream has straight into the ring */
+                        int count = mTransport.read(mRxRing.getArray(),
+                                mRxRing.getWritePosition(), mRxRing.getContiguousFree());
+                        if (count < 0) throw new IOException("End of stream");
+                        mRxRing.commitWrite(count);
+                        if (count > 0) mLinkQuality.onDataReceived(System.nanoTime());
+                        boolean batchFull;
+                        do {
+                            batchFull = mFrameSplitter.split(mRxRing, mFrameBatch);
+                            if (mHandshakeLatch != null) checkHelloAck(mFrameBatch);
+                            checkPingEchoes(mFrameBatch);
+                            if (mFrameBatch.getFrameCount() > 0) {
+                                SessionRecorder recorder = mRecorder;
+                                if (recorder != null) recorder.recordTelemetry(mFrameBatch);
+                                if (mDataListener != null) mDataListener.onDataReceived(mFrameBatch);
+                            }
+                            mFrameBatch.clear();
+                        } while (batchFull);
                     } catch (IOException e) {
-                        setState(CarConnectionState.STATE_DISCONNECTED);
+                        if (stopDetectionFlag) break; // Closed by us, not a link drop
+                        // Link dropped by the other peer. Let the writer quit as well
                         stopDetectionFlag = true;
+                        mCommandSlot.close();
+                        closeTransportQuietly();
+                        if (mState == CarConnectionState.STATE_CONNECTING) break; // connect() reports it
+                        setState(CarConnectionState.STATE_DISCONNECTED);
                     }
                 }
             }
-        });
+        }, "Carz_CarReader");
+        mWriterThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                byte[] command = new byte[LatestCommandSlot.MAX_COMMAND_LENGTH];
+                byte[] ping = new byte[ProtocolV2.MAX_FRAME_LENGTH];
+                int seq = 1; // 0 was HELLO
+                long lastWriteTime = 0;
+                long nextPingTime = SystemClock.uptimeMillis() + PING_INTERVAL_MS;
+                while (true) {
+                    int length;
+                    try {
+                        int maxRate = mMaxFrameRateHz;
+                        if (maxRate > 0) {
+                            /* Wait before take(), so the newest command wins the next slot */
+                            long wait = lastWriteTime + 1000 / maxRate - SystemClock.uptimeMillis();
+                            if (wait > 0) Thread.sleep(wait);
+                        }
+                        if (mProtocolVersion >= ProtocolV2.VERSION) {
+                            /* 0 means no command until the next ping is due */
+                            long untilPing = nextPingTime - SystemClock.uptimeMillis();
+                            length = untilPing > 0 ? mCommandSlot.take(command, untilPing) : 0;
+                        } else {
+                            length = mCommandSlot.take(command);
+                        }
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                    if (length < 0) break; // Slot closed, we are disconnecting
+                    try {
+                        if (length == 0) {
+                            int id = mLinkQuality.onPingSent(System.nanoTime());
+                            ProtocolV2.writeHeader(ping, ProtocolV2.TYPE_PING, seq++, 2);
+                            ping[ProtocolV2.HEADER_LENGTH] = (byte) (id >> 8);
+                            ping[ProtocolV2.HEADER_LENGTH + 1] = (byte) id;
+                            mTransport.write(ping, 0, ProtocolV2.finish(ping, 2));
+                            lastWriteTime = SystemClock.uptimeMillis();
+                            nextPingTime = lastWriteTime + PING_INTERVAL_MS;
+                            continue;
+                        }
+                        if (ProtocolV2.isFrame(command, length)) {
+                            ProtocolV2.stampSequence(command, length, seq++);
+                        }
+                        mTransport.write(command, 0, length);
+                        lastWriteTime = SystemClock.uptimeMillis();
+                        SessionRecorder recorder = mRecorder;
+                        if (recorder != null) recorder.recordCommand(command, 0, length);
+                        long eventTime = mCommandSlot.getTakenEventTime();
+                        if (eventTime > 0) {
+                            mCommandLatency.record(SystemClock.uptimeMillis() - eventTime);
+                        }
+                    } catch (IOException e) {
+                        if (mCommandSlot.isClosed()) break; // Socket closed by disconnect()
+                        Log.e(TAG, "writer: IO", e);
+                        mErrorMessage = e.getLocalizedMessage();
+                        mCommandSlot.close();
+                        stopDetectionFlag = true; // The reader will fail too, keep it quiet
+                        closeTransportQuietly();
+                        setState(CarConnectionState.STATE_FAILED);
+                        break;
+                    }
+                }
+            }
+        }, "Carz_CarWriter");
 
+        mConnectCancelled = false;
         setState(CarConnectionState.STATE_CONNECTING);
         try {
-            mSocket = mBluetoothDevice.createRfcommSocketToServiceRecord(SPP_UUID);
-            mSocket.connect();
-            mOutputStream = mSocket.getOutputStream();
-            mInputStream = mSocket.getInputStream();
+            mTransport.open();
         } catch (IOException e) { // One IOException catches them all. Can be distinguished by e.
+            mErrorMessage = mConnectCancelled ? "Connection cancelled or timed out"
+                    : e.getLocalizedMessage();
+            closeTransportQuietly();
             setState(CarConnectionState.STATE_FAILED);
-            mErrorMessage = e.getLocalizedMessage();
             Log.e(TAG, "connect: operation failed: ", e);
             return;
         }
 
         stopDetectionFlag = false;
+        mProtocolVersion = ProtocolV2.LEGACY_VERSION;
+        mLinkQuality.reset();
+        mMaxFrameRateHz = 0;
         detectionThread.start();
+        negotiateProtocol();
+        if (stopDetectionFlag) {
+            mErrorMessage = mConnectCancelled ? "Connection cancelled or timed out"
+                    : "Connection lost during handshake";
+            setState(CarConnectionState.STATE_FAILED);
+            return;
+        }
+
+        /* Drop anything queued before we knew the protocol */
+        mCommandSlot.reset();
+        mCommandLatency.reset();
+        mWriterThread.start();
         setState(CarConnectionState.STATE_CONNECTED);
     }
 
+    /**
+     * Send HELLO and wait for HELLO_ACK. Runs before the writer thread starts, so we can write
+     * to the transport directly. Leaves the legacy protocol in place if nothing comes back.
+     */
+    private void negotiateProtocol() {
+        byte[] hello = new byte[ProtocolV2.MAX_FRAME_LENGTH];
+        ProtocolV2.writeHeader(hello, ProtocolV2.TYPE_HELLO, 0, 2);
+        hello[ProtocolV2.HEADER_LENGTH] = ProtocolV2.VERSION;
+        hello[ProtocolV2.HEADER_LENGTH + 1] = REQUESTED_MAX_RATE_HZ;
+        int length = ProtocolV2.finish(hello, 2);
+        CountDownLatch latch = new CountDownLatch(1);
+        mHandshakeLatch = latch;
+        try {
+            mTransport.write(hello, 0, length);
+            if (latch.await(HANDSHAKE_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                mProtocolVersion = Math.min(mAckVersion, ProtocolV2.VERSION);
+                mMaxFrameRateHz = mAckMaxRateHz;
+                Log.i(TAG, "negotiateProtocol: v" + mProtocolVersion
+                        + ", max " + mMaxFrameRateHz + "Hz");
+            } else {
+                Log.i(TAG, "negotiateProtocol: no answer, legacy protocol");
+            }
+        } catch (IOException e) {
+            /* The reader sees the broken link as well and stops */
+            Log.w(TAG, "negotiateProtocol: ", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            mHandshakeLatch = null;
+        }
+    }
+
+    /**
+     * Called on the detection thread while connect() waits for HELLO_ACK.
+     */
+    private void checkHelloAck(TelemetryFrameBatch frames) {
+        CountDownLatch latch = mHandshakeLatch;
+        if (latch == null) return;
+        for (int i = 0; i < frames.getFrameCount(); i++) {
+            if (frames.getTag(i) == ProtocolV2.TYPE_HELLO_ACK && frames.getLength(i) >= 3) {
+                mAckVersion = frames.getByte(i, 1);
+                mAckMaxRateHz = frames.getByte(i, 2);
+                latch.countDown();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Called on the detection thread for every batch.
+     */
+    private void checkPingEchoes(TelemetryFrameBatch frames) {
+        for (int i = 0; i < frames.getFrameCount(); i++) {
+            if (frames.getTag(i) == ProtocolV2.TYPE_PING_ECHO && frames.getLength(i) >= 3) {
+                int id = frames.getByte(i, 1) << 8 | frames.getByte(i, 2);
+                mLinkQuality.onEchoReceived(id, System.nanoTime());
+            }
+        }
+    }
+
+    /**
+     * @return null if this connection doesn't go through RFCOMM
+     */
     public BluetoothDevice getTargetDevice() {
-        return mBluetoothDevice;
+        if (mTransport instanceof RfcommTransport) {
+            return ((RfcommTransport) mTransport).getDevice();
+        }
+        return null;
+    }
+
+    public CarTransport getTransport() {
+        return mTransport;
+    }
+
+    /**
+     * Abort a blocking connect() from another thread. connect() will then fail with
+     * STATE_FAILED. Does nothing if we are not connecting.
+     */
+    public void cancelConnect() {
+        if (mState != CarConnectionState.STATE_CONNECTING) return;
+        Log.i(TAG, "cancelConnect: aborting " + mTransport.getAddress());
+        mConnectCancelled = true;
+        closeTransportQuietly();
     }
 
     public void disconnect() {
         setState(CarConnectionState.STATE_DISCONNECTING);
         try {
             stopDetectionFlag = true; // Break the loop
-            mSocket.close();
-            detectionThread.join(); // Wait for finish
-            mState = mLastState; // Recover the state destroyed by detectionThread
+            mCommandSlot.close(); // Break the writer loop
+            mTransport.close();
         } catch (IOException e) {
             setState(CarConnectionState.STATE_FAILED);
             Log.e(TAG, "disconnect: socket close failed", e);
             return;
+        }
+        stopWorkers(); // Wait for finish
+        setState(CarConnectionState.STATE_DISCONNECTED);
+    }
+
+    /**
+     * Make reader and writer threads quit and wait for them. No state change is reported.
+     */
+    private void stopWorkers() {
+        stopDetectionFlag = true;
+        mCommandSlot.close();
+        if (detectionThread != null && detectionThread.isAlive()) {
+            closeTransportQuietly(); // Unblock read()
+        }
+        try {
+            if (detectionThread != null) detectionThread.join();
+            if (mWriterThread != null) mWriterThread.join();
         } catch (InterruptedException e) {
             // do nothing
         }
-        setState(CarConnectionState.STATE_DISCONNECTED);
+    }
+
+    private void closeTransportQuietly() {
+        try {
+            mTransport.close();
+        } catch (IOException e) {
+            Log.w(TAG, "closeTransportQuietly: ", e);
+        }
     }
 
     public CarConnectionState getState() {
@@ -115,26 +385,95 @@ public class BluetoothCarConnection {
         return mLastState;
     }
 
-    public OutputStream getOutputStream() {
-        return mOutputStream;
+    /**
+     * @return telemetry frames received and accepted on this connection
+     */
+    public int getReceivedFrameCount() {
+        return mFrameSplitter.getGoodFrameCount();
+    }
+
+    /**
+     * @return bytes dropped by the receiver while resyncing (corruption, misalignment)
+     */
+    public int getGarbageByteCount() {
+        return mFrameSplitter.getGarbageByteCount();
+    }
+
+    /**
+     * @return frames that started with a known tag but carried an invalid payload
+     */
+    public int getRejectedFrameCount() {
+        return mFrameSplitter.getRejectedFrameCount();
+    }
+
+    /**
+     * @return ProtocolV2.VERSION if the car took the handshake, else LEGACY_VERSION
+     */
+    public int getProtocolVersion() {
+        return mProtocolVersion;
+    }
+
+    /**
+     * @return commands per second the car accepts, 0 if it didn't say (legacy protocol)
+     */
+    public int getMaxFrameRateHz() {
+        return mMaxFrameRateHz;
+    }
+
+    /**
+     * @return v2 frames dropped because of a bad checksum
+     */
+    public int getCrcErrorCount() {
+        return mV2Unwrapper.getCrcErrorCount();
+    }
+
+    /**
+     * @return v2 frames the car sent that never arrived, from sequence number gaps
+     */
+    public int getLostFrameCount() {
+        return mV2Unwrapper.getLostFrameCount();
+    }
+
+    /**
+     * @return input-to-wire latency of tagged commands on this connection
+     */
+    public LatencyHistogram getCommandLatency() {
+        return mCommandLatency;
+    }
+
+    /**
+     * @return round trip time, jitter, loss and last-heard time of this connection
+     */
+    public LinkQualityMonitor getLinkQuality() {
+        return mLinkQuality;
     }
 
     public String getErrorMessage() {
         return mErrorMessage;
     }
 
+    /**
+     * Same as {@link #update(CarTransport, ConnectionStateChangeListener, DataReceivedListener)}
+     * over RFCOMM.
+     */
+    public void update(@NonNull BluetoothDevice device,
+                       @Nullable ConnectionStateChangeListener stateListener,
+                       @Nullable DataReceivedListener dataListener) {
+        update(new RfcommTransport(device), stateListener, dataListener);
+    }
+
     /**
      * For re-use the connection object. This will cause a disconnection before updating.
      *
-     * @param device   Target device
+     * @param transport   Target car
      * @param stateListener Can be null. Callback when connection state changes.
-     * @param dataListener Can be null. Callback when one byte of data is received.
+     * @param dataListener Can be null. Callback when complete frames are received.
      */
-    public void update(@NonNull BluetoothDevice device,
+    public void update(@NonNull CarTransport transport,
                        @Nullable ConnectionStateChangeListener stateListener,
                        @Nullable DataReceivedListener dataListener) {
         if (mState == CarConnectionState.STATE_CONNECTED) {
-            if (device.getAddress().equals(mBluetoothDevice.getAddress())) {
+            if (transport.getAddress().equals(mTransport.getAddress())) {
                 Log.d(TAG, "update: Already connected to the same device. Just notify.");
                 mStateListener = stateListener;
                 mDataListener = dataListener;
@@ -145,22 +484,45 @@ public class BluetoothCarConnection {
                 disconnect();
             }
         } else if (mState == CarConnectionState.STATE_CONNECTING) {
-            Log.i(TAG, "update: The previous connection is CONNECTING.");
-            // TODO: 2015/12/19 disconnect();?
+            Log.i(TAG, "update: The previous connection is CONNECTING. Cancel it.");
+            // BluetoothService serializes connect() and update(), so this only happens if
+            // someone else drives this connection. Nothing better to do than abort it.
+            cancelConnect();
         }
-        mBluetoothDevice = device;
+        mTransport = transport;
         mStateListener = stateListener;
         mDataListener = dataListener;
         setState(CarConnectionState.STATE_DISCONNECTED);
     }
 
+    /**
+     * Queue a command for the writer thread. Never blocks on socket I/O, so it's safe to call
+     * from UI thread.
+     * <p/>
+     * If the previous command hasn't been written yet, it will be replaced by this one.
+     * data is copied, so the caller can reuse it after this returns.
+     */
     public void sendBytes(byte[] data) {
-        try {
-            mOutputStream.write(data);
-        } catch (IOException e) {
-            Log.e(TAG, "sendBytes: IO", e);
-            mErrorMessage = e.getLocalizedMessage();
-            setState(CarConnectionState.STATE_FAILED);
+        sendBytes(data, data.length);
+    }
+
+    /**
+     * Same as {@link #sendBytes(byte[])}, but only the first length bytes of data are sent.
+     */
+    public void sendBytes(byte[] data, int length) {
+        sendBytes(data, length, 0);
+    }
+
+    /**
+     * Same as {@link #sendBytes(byte[], int)}, and tags the command with the input event that
+     * caused it. The time from eventTime until the bytes are written goes to
+     * {@link #getCommandLatency()}.
+     *
+     * @param eventTime MotionEvent.getEventTime() (uptimeMillis). 0 for untagged commands
+     */
+    public void sendBytes(byte[] data, int length, long eventTime) {
+        if (!mCommandSlot.put(data, 0, length, eventTime)) {
+            if (VDBG) Log.d(TAG, "sendBytes: dropped, not connected or too long");
         }
     }
 
@@ -168,6 +530,22 @@ public class BluetoothCarConnection {
         mDataListener = listener;
     }
 
+    /**
+     * Record commands as they are written (after the sequence number is stamped, overwritten
+     * ones are not recorded) and telemetry as it is delivered. Takes effect right away, also
+     * on a live connection.
+     *
+     * @param recorder null to stop recording. Closing it is up to the caller
+     */
+    public void setSessionRecorder(@Nullable SessionRecorder recorder) {
+        mRecorder = recorder;
+    }
+
+    @Nullable
+    public SessionRecorder getSessionRecorder() {
+        return mRecorder;
+    }
+
     public enum CarConnectionState {
         STATE_DISCONNECTED,
         STATE_CONNECTING,
@@ -181,6 +559,10 @@ public class BluetoothCarConnection {
     }
 
     public interface DataReceivedListener {
-        void onDataReceived(int data);
+        /**
+         * Called on the detection thread with all complete frames read in one go.
+         * frames is reused after this returns.
+         */
+        void onDataReceived(TelemetryFrameBatch frames);
     }
 }
@@ -5,6 +5,7 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.ServiceConnection;
 import android.os.IBinder;
+import android.os.SystemClock;
 
 /**
  * Created by Hamster on 2015/12/21.
@@ -26,26 +27,28 @@ import android.os.IBinder;
  * Bluetooth Commands(debug mode):
  * HS:S Stop
  * HS:Lxxx,Rxxx Left motor speed=xxx, Right motor speed=xxx (Positive number for forward, negative for backward)
+ * <p/>
+ * This is meant to be driven by {@link ControlTickScheduler}, so one call means one control tick.
+ * Mapped speeds go through {@link MotorSpeedFilter} before they are encoded.
+ * A frame identical to the last one is only re-sent every KEEPALIVE_INTERVAL_MS.
  */
 public class BluetoothCommandSender implements TouchControllerListener.OnTouchStateChangedListener {
-    /**
-     * If abs(deltaX1 - deltaX2) < maxHeight * THRESHOLD, they will be treated the same. The car will go straight.
-     * If deltaX1(X2) < maxHeight * THRESHOLD,
-     */
-    private static final float IGNORE_DELTA_THRESHOLD = 0.1f;
-    /**
-     * Convert maxHeight to this value. 127 is maximum of one signed byte.
-     */
-    private static final int MAX_VALUE = 127;
-    /**
-     * Convert minHeight to this value. Low values will cause motors to stop working (and burning)
-     */
-    private static final int MIN_VALUE = 30;
     /**
      * Set this to true and we will send human readable outputs to Bluetooth port.
      */
     private static final boolean DEBUG_MODE = false;
-    private BluetoothService mService;
+    /**
+     * Re-send an unchanged frame after this long, so the car knows we are still alive.
+     */
+    private static final long KEEPALIVE_INTERVAL_MS = 500;
+    private int mLastLeftSpeed;
+    private int mLastRightSpeed;
+    private long mLastSendTime;
+    private long mLastEventTime;
+    private final MotorSpeedMapper mMapper = new MotorSpeedMapper();
+    private final MotorSpeedFilter mFilter = new MotorSpeedFilter();
+    private final CommandEncoder mEncoder = new CommandEncoder(DEBUG_MODE);
+    private volatile BluetoothService mService; /* Bound on the UI thread, used on the tick thread */
     private Context mContext;
     private ServiceConnection btServConn = new ServiceConnection() {
         @Override
@@ -70,45 +73,56 @@ public class BluetoothCommandSender implements TouchControllerListener.OnTouchSt
     public void onTouchStateChanged(TouchControllerListener.TouchState left,
                                     TouchControllerListener.TouchState right,
                                     int maxWidth, int maxHeight) {
+        if (mService == null) return; // Not bound yet
+
         int touches = 0;
         if (left.isValid()) touches++;
         if (right.isValid()) touches++;
 
-        switch (touches) {
-            case 0:
-            case 1:
-                /* No/One finger is on screen. Stop. */
-                if (DEBUG_MODE)
-                    mService.sendBytes("HS:S\r\n".getBytes());
-                else
-                    mService.sendBytes(new byte[]{'H', 'S', 0, 0});
-                break;
-            case 2:
-                /* Two finger is on screen. Android's y-axis is different from human's sense */
-                int deltaXL = left.mStartPoint.y - left.mCurrentPoint.y;
-                int deltaXR = right.mStartPoint.y - right.mCurrentPoint.y;
-                /* Ignore small deltas (caused by finger shaking) */
-                if (Math.abs(deltaXL) < maxHeight * IGNORE_DELTA_THRESHOLD) deltaXL = 0;
-                if (Math.abs(deltaXR) < maxHeight * IGNORE_DELTA_THRESHOLD) deltaXR = 0;
-                /* Ignore close deltas (make it easier to go straight) */
-                if (Math.abs(deltaXL - deltaXR) < maxHeight * IGNORE_DELTA_THRESHOLD)
-                    deltaXL = deltaXR = Math.min(deltaXL, deltaXR);
-                /* Convert values */
-                if (deltaXL >= 0)
-                    deltaXL = (int) ((float) deltaXL / maxHeight * (MAX_VALUE - MIN_VALUE) + MIN_VALUE);
-                else
-                    deltaXL = (int) ((float) deltaXL / maxHeight * (MAX_VALUE - MIN_VALUE) - MIN_VALUE);
-                if (deltaXR >= 0)
-                    deltaXR = (int) ((float) deltaXR / maxHeight * (MAX_VALUE - MIN_VALUE) + MIN_VALUE);
-                else
-                    deltaXR = (int) ((float) deltaXR / maxHeight * (MAX_VALUE - MIN_VALUE) - MIN_VALUE);
-                /* Send it */
-                if (DEBUG_MODE)
-                    mService.sendBytes(String.format("HS:L%03d,R%03d\r\n", deltaXL, deltaXR).getBytes());
-                else
-                    mService.sendBytes(new byte[]{'H', 'S', (byte) deltaXL, (byte) deltaXR});
-                break;
+        /* No/One finger is on screen means stop. Right away, the filter doesn't ramp stops */
+        /* Filtered positions use every digitizer sample and have less jitter than the raw ones */
+        long now = SystemClock.uptimeMillis();
+        if (touches == 2) {
+            mMapper.map(left.mStartPoint.y, Math.round(left.mFilteredY),
+                    right.mStartPoint.y, Math.round(right.mFilteredY), maxHeight,
+                    left.mStopInDeadBand, right.mStopInDeadBand);
+            mFilter.update(mMapper.getLeftSpeed(), mMapper.getRightSpeed(), now);
+        } else {
+            mMapper.mapStop();
+            mFilter.reset();
+        }
+        int deltaXL = mFilter.getLeftSpeed();
+        int deltaXR = mFilter.getRightSpeed();
+
+        /* Newest input this tick reflects */
+        long eventTime = Math.max(left.mEventTime, right.mEventTime);
+        /* Skip identical frames unless it's time for a keepalive */
+        if (deltaXL == mLastLeftSpeed && deltaXR == mLastRightSpeed
+                && now - mLastSendTime < KEEPALIVE_INTERVAL_MS) {
+            mLastEventTime = eventTime; /* Handled, it just didn't change anything */
+            return;
         }
+        mLastLeftSpeed = deltaXL;
+        mLastRightSpeed = deltaXR;
+        mLastSendTime = now;
+
+        /* Send it. The encoder reuses its buffers, nothing is allocated here */
+        mEncoder.setProtocolVersion(mService.getProtocolVersion());
+        if (touches < 2)
+            mEncoder.encodeStop();
+        else
+            mEncoder.encodeSpeeds(deltaXL, deltaXR);
+        /* Tag the frame for latency stats. Keepalives carry no new input, don't tag them */
+        long latencyTag = eventTime == mLastEventTime ? 0 : eventTime;
+        mLastEventTime = eventTime;
+        mService.sendBytes(mEncoder.getFrame(), mEncoder.getLength(), latencyTag);
+    }
+
+    /**
+     * Tune slew rates, low-pass and quantization of the command output.
+     */
+    public MotorSpeedFilter getFilter() {
+        return mFilter;
     }
 
     @Override
@@ -1,6 +1,7 @@
 package org.hamster.carz;
 
 import android.app.Service;
+import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.content.Intent;
 import android.os.Binder;
@@ -8,49 +9,416 @@ import android.os.IBinder;
 import android.support.annotation.Nullable;
 import android.util.Log;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
 /**
  * Created by Hamster on 2015/12/19.
  * <p/>
  * Service to perform Bluetooth connection and data transfer.
- * Specifically, only one connection is allowed since one adapter can connect to one SPP
- * instance only.
  * <p/>
  * NOTE: Service runs in the same thread as MainActivity. Don't do time consuming things here.
+ * <p/>
+ * The service manages a fleet of cars. Every car has its own {@link BluetoothCarConnection}
+ * (with its own reader and writer threads) and its own connection executor, so a car that
+ * is slow to connect or has a bad link doesn't hold up the others. Connecting and
+ * disconnecting one car run on its executor, so they never overlap. A connect() that takes
+ * longer than CONNECT_TIMEOUT_MS is cancelled. If an established link drops (not by
+ * disconnect()), we reconnect with exponential backoff. The client's state listener doesn't
+ * hear about the drop or the attempts, only about the final DISCONNECTED if we give up.
+ * <p/>
+ * The single-car methods (connect(), sendBytes(), disconnect(), ...) work on the primary car,
+ * the one last connected with connect(). Cars added with {@link #addCar} are driven through
+ * sendBytesTo(), sendBytesToGroup() and sendBytesToAll(), and report telemetry to
+ * {@link FleetDataListener}s.
+ * <p/>
+ * Every car decodes its telemetry into its own {@link TelemetryRegistry}, whether or not
+ * anybody listens for raw frames, see {@link #getTelemetry(String)}.
+ * <p/>
+ * Cars we connected to over RFCOMM are remembered with their channel in {@link KnownCarStore},
+ * see {@link #connectLastCar}.
  */
 public class BluetoothService extends Service {
     private static final String TAG = "Carz_BTSrv";
     private static final boolean VDBG = true;
 
-    private BluetoothCarConnection mConnection;
+    private static final long CONNECT_TIMEOUT_MS = 10000;
+    /**
+     * First reconnect is immediate, then this doubles up to RECONNECT_MAX_DELAY_MS.
+     */
+    private static final long RECONNECT_BASE_DELAY_MS = 100;
+    private static final long RECONNECT_MAX_DELAY_MS = 5000;
+    private static final int MAX_RECONNECT_ATTEMPTS = 10;
+
+    /**
+     * Copy-on-write, so the send paths can walk it without locking or allocating.
+     * Replaced under the service lock.
+     */
+    private volatile ManagedCar[] mCars = new ManagedCar[0];
+    private volatile ManagedCar mPrimaryCar;
+    private volatile FleetDataListener[] mFleetListeners = new FleetDataListener[0];
+    private KnownCarStore mKnownCars;
+    /**
+     * Fires connect timeouts. Must not be a car's executor, which is busy in connect().
+     */
+    private final ScheduledExecutorService mWatchdog = Executors.newSingleThreadScheduledExecutor();
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        mKnownCars = new KnownCarStore(this);
+    }
 
     public void connect(BluetoothDevice device,
                         BluetoothCarConnection.ConnectionStateChangeListener stateListener,
                         BluetoothCarConnection.DataReceivedListener dataListener) {
-        if (VDBG) Log.d(TAG, "connect: " + device.getAddress());
-        if (mConnection != null) {
-            mConnection.update(device, stateListener, dataListener);
-        } else {
-            mConnection = new BluetoothCarConnection(device, stateListener, dataListener);
+        connect(toTransport(device), stateListener, dataListener);
+    }
+
+    /**
+     * Connect to the car we used last time, without asking the user to pick it.
+     * Bluetooth must be on already.
+     *
+     * @return false if there is no known car or Bluetooth is not available
+     */
+    public boolean connectLastCar(BluetoothCarConnection.ConnectionStateChangeListener stateListener,
+                                  BluetoothCarConnection.DataReceivedListener dataListener) {
+        String address = mKnownCars.getLastAddress();
+        BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+        if (address == null || adapter == null || !adapter.isEnabled()
+                || !BluetoothAdapter.checkBluetoothAddress(address)) {
+            return false;
         }
-        new Thread(new Runnable() {
-            @Override
-            public void run() {
-                mConnection.connect();
+        Log.i(TAG, "connectLastCar: " + address);
+        connect(adapter.getRemoteDevice(address), stateListener, dataListener);
+        return true;
+    }
+
+    /**
+     * Connect the primary car through any transport, e.g. TCP for WiFi bridges or loopback
+     * for tests. A different primary car is removed from the fleet first. The new car only
+     * starts connecting once the old one has reported its disconnect, so the client sees the
+     * two in order.
+     */
+    public void connect(CarTransport transport,
+                        BluetoothCarConnection.ConnectionStateChangeListener stateListener,
+                        BluetoothCarConnection.DataReceivedListener dataListener) {
+        ManagedCar primary = mPrimaryCar;
+        ManagedCar previous = null;
+        if (primary != null && !primary.mAddress.equals(transport.getAddress())
+                && removeCar(primary.mAddress)) {
+            previous = primary;
+        }
+        mPrimaryCar = addCar(transport, stateListener, dataListener, previous);
+    }
+
+    /**
+     * Same as {@link #addCar(CarTransport, BluetoothCarConnection.ConnectionStateChangeListener,
+     * BluetoothCarConnection.DataReceivedListener)} over RFCOMM.
+     */
+    public void addCar(BluetoothDevice device,
+                       BluetoothCarConnection.ConnectionStateChangeListener stateListener,
+                       BluetoothCarConnection.DataReceivedListener dataListener) {
+        addCar(toTransport(device), stateListener, dataListener);
+    }
+
+    /**
+     * Connect one more car, leaving the others alone. If a car with the same address is in
+     * the fleet already, it is reconnected (if needed) with the new listeners.
+     *
+     * @param dataListener Telemetry of this car only. See also {@link #addFleetDataListener}
+     */
+    public ManagedCar addCar(CarTransport transport,
+                             BluetoothCarConnection.ConnectionStateChangeListener stateListener,
+                             BluetoothCarConnection.DataReceivedListener dataListener) {
+        return addCar(transport, stateListener, dataListener, null);
+    }
+
+    /**
+     * @param previous Removed car to wait for before connecting, null for none
+     */
+    private ManagedCar addCar(CarTransport transport,
+                              BluetoothCarConnection.ConnectionStateChangeListener stateListener,
+                              BluetoothCarConnection.DataReceivedListener dataListener,
+                              @Nullable ManagedCar previous) {
+        if (VDBG) Log.d(TAG, "addCar: " + transport.getAddress());
+        ManagedCar car;
+        synchronized (this) {
+            car = findCar(transport.getAddress());
+            if (car == null) {
+                car = new ManagedCar(transport.getAddress());
+                ManagedCar[] cars = new ManagedCar[mCars.length + 1];
+                System.arraycopy(mCars, 0, cars, 0, mCars.length);
+                cars[mCars.length] = car;
+                mCars = cars;
+            }
+        }
+        car.connect(transport, stateListener, dataListener, previous);
+        return car;
+    }
+
+    /**
+     * Disconnect a car and forget it.
+     *
+     * @return false if there was no such car
+     */
+    public boolean removeCar(String address) {
+        ManagedCar car;
+        synchronized (this) {
+            car = findCar(address);
+            if (car == null) return false;
+            ManagedCar[] cars = new ManagedCar[mCars.length - 1];
+            int n = 0;
+            for (ManagedCar c : mCars) {
+                if (c != car) cars[n++] = c;
             }
-        }).start();
+            mCars = cars;
+            if (mPrimaryCar == car) mPrimaryCar = null;
+        }
+        car.shutdown();
+        return true;
+    }
+
+    /**
+     * @return null if the car is not in the fleet
+     */
+    @Nullable
+    public ManagedCar getCar(String address) {
+        return findCar(address);
+    }
+
+    /**
+     * @return a snapshot of the fleet. Don't modify it
+     */
+    public ManagedCar[] getCars() {
+        return mCars;
+    }
+
+    /**
+     * Put a car into groups for {@link #sendBytesToGroup}.
+     *
+     * @param groups Bit mask, one bit per group
+     */
+    public void setCarGroups(String address, int groups) {
+        ManagedCar car = findCar(address);
+        if (car != null) car.mGroups = groups;
+    }
+
+    /**
+     * Queue a command for one car. Only that car's writer thread touches the link.
+     *
+     * @return false if the car is not in the fleet
+     */
+    public boolean sendBytesTo(String address, byte[] data, int length, long eventTime) {
+        ManagedCar car = findCar(address);
+        if (car == null) return false;
+        car.sendBytes(data, length, eventTime);
+        return true;
+    }
+
+    /**
+     * Queue a command for every car in any of the given groups. Each car has its own writer,
+     * so a slow link only delays its own car.
+     *
+     * @return number of cars the command was queued for
+     */
+    public int sendBytesToGroup(int groups, byte[] data, int length, long eventTime) {
+        int count = 0;
+        for (ManagedCar car : mCars) {
+            if ((car.mGroups & groups) != 0) {
+                car.sendBytes(data, length, eventTime);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return number of cars the command was queued for
+     */
+    public int sendBytesToAll(byte[] data, int length, long eventTime) {
+        ManagedCar[] cars = mCars;
+        for (ManagedCar car : cars) {
+            car.sendBytes(data, length, eventTime);
+        }
+        return cars.length;
+    }
+
+    /**
+     * Disconnect every car in the fleet. They stay in the fleet.
+     */
+    public void disconnectAll() {
+        for (ManagedCar car : mCars) {
+            car.disconnect();
+        }
+    }
+
+    /**
+     * Get telemetry of all cars. Called on the reader thread of the car that sent it, so
+     * keep it short or one car's telemetry will pile up behind the listener.
+     */
+    public synchronized void addFleetDataListener(FleetDataListener listener) {
+        FleetDataListener[] listeners = new FleetDataListener[mFleetListeners.length + 1];
+        System.arraycopy(mFleetListeners, 0, listeners, 0, mFleetListeners.length);
+        listeners[mFleetListeners.length] = listener;
+        mFleetListeners = listeners;
+    }
+
+    public synchronized void removeFleetDataListener(FleetDataListener listener) {
+        int index = -1;
+        for (int i = 0; i < mFleetListeners.length; i++) {
+            if (mFleetListeners[i] == listener) index = i;
+        }
+        if (index < 0) return;
+        FleetDataListener[] listeners = new FleetDataListener[mFleetListeners.length - 1];
+        System.arraycopy(mFleetListeners, 0, listeners, 0, index);
+        System.arraycopy(mFleetListeners, index + 1, listeners, index, listeners.length - index);
+        mFleetListeners = listeners;
     }
 
     public void sendBytes(byte[] data) {
-        mConnection.sendBytes(data);
+        sendBytes(data, data.length, 0);
     }
 
+    public void sendBytes(byte[] data, int length) {
+        sendBytes(data, length, 0);
+    }
+
+    /**
+     * Send to the primary car.
+     *
+     * @param eventTime Input event that caused this command, see
+     *                  {@link BluetoothCarConnection#sendBytes(byte[], int, long)}
+     */
+    public void sendBytes(byte[] data, int length, long eventTime) {
+        ManagedCar car = mPrimaryCar;
+        if (car != null) car.sendBytes(data, length, eventTime);
+    }
+
+    /**
+     * @return input-to-wire latency of the primary car, null if never connected
+     */
+    @Nullable
+    public LatencyHistogram getCommandLatency() {
+        BluetoothCarConnection connection = getPrimaryConnection();
+        return connection == null ? null : connection.getCommandLatency();
+    }
+
+    /**
+     * @return decoded telemetry of the primary car, null if there is none
+     */
+    @Nullable
+    public TelemetryRegistry getTelemetry() {
+        ManagedCar car = mPrimaryCar;
+        return car == null ? null : car.mTelemetry;
+    }
+
+    /**
+     * @return decoded telemetry of a car, null if it's not in the fleet
+     */
+    @Nullable
+    public TelemetryRegistry getTelemetry(String address) {
+        ManagedCar car = findCar(address);
+        return car == null ? null : car.mTelemetry;
+    }
+
+    /**
+     * @return ping statistics and last-heard time of the primary car, null if never connected
+     */
+    @Nullable
+    public LinkQualityMonitor getLinkQuality() {
+        BluetoothCarConnection connection = getPrimaryConnection();
+        return connection == null ? null : connection.getLinkQuality();
+    }
+
+    /**
+     * Disconnect the primary car on its executor. Stops reconnecting as well.
+     */
     public void disconnect() {
-        if (mConnection == null) return;
-        mConnection.disconnect();
+        ManagedCar car = mPrimaryCar;
+        if (car != null) car.disconnect();
+    }
+
+    /**
+     * Receive side link quality of the primary car. See {@link TelemetryFrameSplitter}.
+     */
+    public int getReceivedFrameCount() {
+        BluetoothCarConnection connection = getPrimaryConnection();
+        return connection == null ? 0 : connection.getReceivedFrameCount();
+    }
+
+    public int getGarbageByteCount() {
+        BluetoothCarConnection connection = getPrimaryConnection();
+        return connection == null ? 0 : connection.getGarbageByteCount();
+    }
+
+    public int getRejectedFrameCount() {
+        BluetoothCarConnection connection = getPrimaryConnection();
+        return connection == null ? 0 : connection.getRejectedFrameCount();
+    }
+
+    /**
+     * @return protocol negotiated with the primary car, see {@link ProtocolV2}
+     */
+    public int getProtocolVersion() {
+        BluetoothCarConnection connection = getPrimaryConnection();
+        return connection == null ? ProtocolV2.LEGACY_VERSION : connection.getProtocolVersion();
     }
 
     public void setOnDataReceivedListener(BluetoothCarConnection.DataReceivedListener listener) {
-        mConnection.setOnDataReceivedListener(listener);
+        ManagedCar car = mPrimaryCar;
+        if (car != null) car.mClientDataListener = listener;
+    }
+
+    /**
+     * Record the primary car's commands and telemetry into directory, see
+     * {@link SessionRecorder}. Keeps recording across reconnects until stopRecording().
+     *
+     * @return null if there is no primary car
+     */
+    @Nullable
+    public SessionRecorder startRecording(File directory) throws IOException {
+        ManagedCar car = mPrimaryCar;
+        return car == null ? null : car.startRecording(directory);
+    }
+
+    public void stopRecording() {
+        ManagedCar car = mPrimaryCar;
+        if (car != null) car.stopRecording();
+    }
+
+    @Nullable
+    private BluetoothCarConnection getPrimaryConnection() {
+        ManagedCar car = mPrimaryCar;
+        return car == null ? null : car.mConnection;
+    }
+
+    @Nullable
+    private ManagedCar findCar(String address) {
+        for (ManagedCar car : mCars) {
+            if (car.mAddress.equals(address)) return car;
+        }
+        return null;
+    }
+
+    private CarTransport toTransport(BluetoothDevice device) {
+        /* Skip SDP if we know where the car listens */
+        int channel = mKnownCars.getChannel(device.getAddress());
+        if (VDBG) Log.d(TAG, "connect: cached channel " + channel);
+        return new RfcommTransport(device, channel);
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        for (ManagedCar car : mCars) {
+            car.shutdown();
+        }
+        mWatchdog.shutdownNow();
     }
 
     @Nullable
@@ -65,4 +433,291 @@ public class BluetoothService extends Service {
             return BluetoothService.this;
         }
     }
+
+    /**
+     * One car of the fleet: its connection, its executor and its reconnect state.
+     */
+    public class ManagedCar {
+        private final String mAddress;
+        /**
+         * Runs connect/disconnect/reconnect of this car one at a time.
+         */
+        private final ScheduledExecutorService mConnectionExecutor =
+                Executors.newSingleThreadScheduledExecutor();
+        private volatile BluetoothCarConnection mConnection;
+        private volatile BluetoothCarConnection.ConnectionStateChangeListener mClientStateListener;
+        private volatile BluetoothCarConnection.DataReceivedListener mClientDataListener;
+        private volatile boolean mUserDisconnected;
+        private volatile int mGroups;
+        private volatile SessionRecorder mRecorder;
+        /**
+         * Lives as long as the car is in the fleet, across reconnects.
+         */
+        private final TelemetryRegistry mTelemetry = new TelemetryRegistry();
+        private int mReconnectAttempts; /* Guarded by this */
+        private ScheduledFuture<?> mPendingReconnect; /* Guarded by this */
+        /**
+         * From a dropped link until it's back or we give up. Guarded by this.
+         */
+        private boolean mReconnecting;
+        /**
+         * Sits between the connection and the client's listener to spot dropped links, and
+         * keeps reconnects from the client.
+         */
+        private final BluetoothCarConnection.ConnectionStateChangeListener mStateWatcher =
+                new BluetoothCarConnection.ConnectionStateChangeListener() {
+                    @Override
+                    public void onCarConnectionStateChanged(BluetoothCarConnection connection) {
+                        if (onConnectionStateChanged(connection)) return;
+                        BluetoothCarConnection.ConnectionStateChangeListener client = mClientStateListener;
+                        if (client != null) client.onCarConnectionStateChanged(connection);
+                    }
+                };
+        /**
+         * Decodes this car's telemetry, then hands the frames to its own listener and to the
+         * fleet listeners.
+         */
+        private final BluetoothCarConnection.DataReceivedListener mDataForwarder =
+                new BluetoothCarConnection.DataReceivedListener() {
+                    @Override
+                    public void onDataReceived(TelemetryFrameBatch frames) {
+                        mTelemetry.dispatch(frames);
+                        BluetoothCarConnection.DataReceivedListener client = mClientDataListener;
+                        if (client != null) client.onDataReceived(frames);
+                        for (FleetDataListener listener : mFleetListeners) {
+                            listener.onFleetDataReceived(ManagedCar.this, frames);
+                        }
+                    }
+                };
+        private final Runnable mConnectTask = new Runnable() {
+            @Override
+            public void run() {
+                if (mUserDisconnected) return;
+                final BluetoothCarConnection connection = mConnection;
+                ScheduledFuture<?> timeout = mWatchdog.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        Log.w(TAG, "connect: " + mAddress + " timed out after "
+                                + CONNECT_TIMEOUT_MS + "ms");
+                        connection.cancelConnect();
+                    }
+                }, CONNECT_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                connection.connect();
+                timeout.cancel(false);
+            }
+        };
+
+        ManagedCar(String address) {
+            mAddress = address;
+            mGroups = 1;
+        }
+
+        public String getAddress() {
+            return mAddress;
+        }
+
+        /**
+         * @return null until the first connect() has been scheduled
+         */
+        @Nullable
+        public BluetoothCarConnection getConnection() {
+            return mConnection;
+        }
+
+        public int getGroups() {
+            return mGroups;
+        }
+
+        public TelemetryRegistry getTelemetry() {
+            return mTelemetry;
+        }
+
+        /**
+         * @return true while a dropped link is being reconnected
+         */
+        public synchronized boolean isReconnecting() {
+            return mReconnecting;
+        }
+
+        /**
+         * @param previous Shut down car whose disconnect has to finish first, null for none
+         */
+        void connect(final CarTransport transport,
+                     final BluetoothCarConnection.ConnectionStateChangeListener stateListener,
+                     final BluetoothCarConnection.DataReceivedListener dataListener,
+                     @Nullable final ManagedCar previous) {
+            mUserDisconnected = false;
+            cancelReconnect();
+            /* A connect() in flight would hold the executor, abort it */
+            BluetoothCarConnection connection = mConnection;
+            if (connection != null) connection.cancelConnect();
+            mConnectionExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (previous != null) previous.awaitShutdown();
+                    mClientStateListener = stateListener;
+                    mClientDataListener = dataListener;
+                    if (mConnection != null) {
+                        mConnection.update(transport, mStateWatcher, mDataForwarder);
+                    } else {
+                        mConnection = new BluetoothCarConnection(transport, mStateWatcher,
+                                mDataForwarder);
+                    }
+                    mConnection.setSessionRecorder(mRecorder);
+                }
+            });
+            mConnectionExecutor.execute(mConnectTask);
+        }
+
+        void sendBytes(byte[] data, int length, long eventTime) {
+            BluetoothCarConnection connection = mConnection;
+            if (connection != null) connection.sendBytes(data, length, eventTime);
+        }
+
+        /**
+         * Start a new recording of this car, replacing the running one.
+         */
+        public synchronized SessionRecorder startRecording(File directory) throws IOException {
+            stopRecording();
+            /* Addresses contain ':', which some file systems don't like */
+            String name = mAddress.replace(':', '_') + "-" + System.currentTimeMillis();
+            SessionRecorder recorder = new SessionRecorder(directory, name,
+                    SessionRecorder.DEFAULT_FILE_SIZE, SessionRecorder.DEFAULT_MAX_FILES);
+            setRecorder(recorder);
+            Log.i(TAG, "startRecording: " + mAddress + " into " + directory + "/" + name);
+            return recorder;
+        }
+
+        public synchronized void stopRecording() {
+            SessionRecorder recorder = mRecorder;
+            if (recorder == null) return;
+            setRecorder(null);
+            recorder.close();
+            Log.i(TAG, "stopRecording: " + mAddress + ", " + recorder.getRecordCount()
+                    + " records, " + recorder.getDroppedCount() + " dropped");
+        }
+
+        @Nullable
+        public SessionRecorder getRecorder() {
+            return mRecorder;
+        }
+
+        private void setRecorder(SessionRecorder recorder) {
+            mRecorder = recorder;
+            BluetoothCarConnection connection = mConnection;
+            if (connection != null) connection.setSessionRecorder(recorder);
+        }
+
+        /**
+         * Disconnect on this car's executor. Stops reconnecting as well.
+         */
+        void disconnect() {
+            mUserDisconnected = true;
+            cancelReconnect();
+            final BluetoothCarConnection connection = mConnection;
+            if (connection == null) return;
+            connection.cancelConnect();
+            mConnectionExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    connection.disconnect();
+                }
+            });
+        }
+
+        /**
+         * Disconnect and release the executor once that's done.
+         */
+        void shutdown() {
+            disconnect();
+            stopRecording();
+            mConnectionExecutor.shutdown(); // Let the disconnect above finish
+        }
+
+        /**
+         * Wait until the disconnect queued by shutdown() has run and reported its state.
+         */
+        private void awaitShutdown() {
+            try {
+                if (!mConnectionExecutor.awaitTermination(CONNECT_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                    Log.w(TAG, "awaitShutdown: " + mAddress + " still disconnecting");
+                }
+            } catch (InterruptedException e) {
+                Log.w(TAG, "awaitShutdown: interrupted", e);
+            }
+        }
+
+        /**
+         * Called on whatever thread changed the state. Schedules reconnects for dropped links.
+         *
+         * @return true if the client must not see this change: the drop and everything up to
+         * the link being back (or us giving up)
+         */
+        private synchronized boolean onConnectionStateChanged(final BluetoothCarConnection connection) {
+            BluetoothCarConnection.CarConnectionState state = connection.getState();
+            BluetoothCarConnection.CarConnectionState lastState = connection.getLastState();
+            if (state == BluetoothCarConnection.CarConnectionState.STATE_CONNECTED) {
+                boolean reconnected = mReconnecting;
+                mReconnecting = false;
+                mReconnectAttempts = 0;
+                CarTransport transport = connection.getTransport();
+                if (transport instanceof RfcommTransport) {
+                    mKnownCars.remember(transport.getAddress(), ((RfcommTransport) transport).getChannel());
+                }
+                if (reconnected) Log.i(TAG, "reconnect: " + mAddress + " is back");
+                return reconnected; /* The client still thinks it's connected */
+            }
+            if (mUserDisconnected || mConnectionExecutor.isShutdown()) return false;
+            /* Detection thread reports DISCONNECTED, a failed write reports FAILED */
+            boolean dropped = lastState == BluetoothCarConnection.CarConnectionState.STATE_CONNECTED
+                    && (state == BluetoothCarConnection.CarConnectionState.STATE_DISCONNECTED
+                    || state == BluetoothCarConnection.CarConnectionState.STATE_FAILED);
+            boolean retryFailed = mReconnecting
+                    && state == BluetoothCarConnection.CarConnectionState.STATE_FAILED;
+            if (!dropped && !retryFailed) return mReconnecting; /* e.g. CONNECTING of a retry */
+
+            if (mReconnectAttempts >= MAX_RECONNECT_ATTEMPTS) {
+                Log.w(TAG, "reconnect: " + mAddress + " giving up after "
+                        + mReconnectAttempts + " attempts");
+                mReconnectAttempts = 0;
+                mReconnecting = false;
+                /* The client missed the drop. A real disconnect tells it we are done */
+                mConnectionExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        connection.disconnect();
+                    }
+                });
+                return true;
+            }
+            long delay = mReconnectAttempts == 0 ? 0 : Math.min(
+                    RECONNECT_BASE_DELAY_MS << (mReconnectAttempts - 1), RECONNECT_MAX_DELAY_MS);
+            mReconnectAttempts++;
+            Log.i(TAG, "reconnect: " + mAddress + " attempt " + mReconnectAttempts
+                    + " in " + delay + "ms");
+            mReconnecting = true;
+            mPendingReconnect = mConnectionExecutor.schedule(mConnectTask, delay,
+                    TimeUnit.MILLISECONDS);
+            return true;
+        }
+
+        private synchronized void cancelReconnect() {
+            if (mPendingReconnect != null) {
+                mPendingReconnect.cancel(false);
+                mPendingReconnect = null;
+            }
+            mReconnectAttempts = 0;
+            mReconnecting = false;
+        }
+    }
+
+    /**
+     * Telemetry from every car in the fleet.
+     */
+    public interface FleetDataListener {
+        /**
+         * Called on the reader thread of car. frames is reused after this returns.
+         */
+        void onFleetDataReceived(ManagedCar car, TelemetryFrameBatch frames);
+    }
 }
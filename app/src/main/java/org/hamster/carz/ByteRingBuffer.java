@@ -0,0 +1,111 @@
+package org.hamster.carz;
+
+/**
+ * Fixed size byte FIFO for the receiving side of a connection.
+ * <p/>
+ * Written by InputStream.read(byte[], int, int) directly into the backing array (see
+ * {@link #getArray()}, {@link #getWritePosition()}, {@link #getContiguousFree()} and
+ * {@link #commitWrite(int)}), so no intermediate copy is made.
+ * <p/>
+ * Not thread safe. It's owned by the detection thread.
+ */
+public class ByteRingBuffer {
+    private final byte[] mBuffer;
+    private final int mMask;
+    /* Free-running counters. Masked when used as indexes. */
+    private int mReadCount;
+    private int mWriteCount;
+
+    /**
+     * @param capacity Must be a power of 2
+     */
+    public ByteRingBuffer(int capacity) {
+        if (capacity <= 0 || (capacity & (capacity - 1)) != 0)
+            throw new IllegalArgumentException("capacity must be a power of 2: " + capacity);
+        mBuffer = new byte[capacity];
+        mMask = capacity - 1;
+    }
+
+    public int getCapacity() {
+        return mBuffer.length;
+    }
+
+    /**
+     * @return bytes written but not read yet
+     */
+    public int available() {
+        return mWriteCount - mReadCount;
+    }
+
+    public int free() {
+        return mBuffer.length - available();
+    }
+
+    public byte[] getArray() {
+        return mBuffer;
+    }
+
+    /**
+     * @return index in getArray() where the next byte should be written
+     */
+    public int getWritePosition() {
+        return mWriteCount & mMask;
+    }
+
+    /**
+     * @return how many bytes can be written at getWritePosition() without wrapping around
+     */
+    public int getContiguousFree() {
+        return Math.min(free(), mBuffer.length - getWritePosition());
+    }
+
+    /**
+     * Mark count bytes starting at getWritePosition() as written.
+     */
+    public void commitWrite(int count) {
+        if (count < 0 || count > free())
+            throw new IllegalArgumentException("Bad count " + count + ", free " + free());
+        mWriteCount += count;
+    }
+
+    /**
+     * Copy data in. Writes as many bytes as there is room for.
+     *
+     * @return bytes actually written
+     */
+    public int write(byte[] src, int offset, int length) {
+        int count = Math.min(length, free());
+        for (int i = 0; i < count; i++) {
+            mBuffer[(mWriteCount + i) & mMask] = src[offset + i];
+        }
+        mWriteCount += count;
+        return count;
+    }
+
+    /**
+     * @param index 0 is the oldest byte. Must be less than available()
+     * @return the byte as unsigned (0~255)
+     */
+    public int peek(int index) {
+        return mBuffer[(mReadCount + index) & mMask] & 0xFF;
+    }
+
+    /**
+     * Copy length bytes out without consuming them.
+     */
+    public void peek(byte[] dest, int offset, int length) {
+        for (int i = 0; i < length; i++) {
+            dest[offset + i] = mBuffer[(mReadCount + i) & mMask];
+        }
+    }
+
+    public void skip(int count) {
+        if (count < 0 || count > available())
+            throw new IllegalArgumentException("Bad count " + count + ", available " + available());
+        mReadCount += count;
+    }
+
+    public void clear() {
+        mReadCount = mWriteCount;
+    }
+}
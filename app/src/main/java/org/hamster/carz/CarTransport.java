@@ -0,0 +1,40 @@
+package org.hamster.carz;
+
+import java.io.IOException;
+
+/**
+ * A byte pipe to a car. {@link BluetoothCarConnection} talks to cars through this, so the same
+ * command/telemetry pipeline can run over RFCOMM, TCP (WiFi-serial bridges) or an in-memory
+ * loopback.
+ * <p/>
+ * read() is only called from the detection thread and write() only from the writer thread.
+ * close() may be called from any thread and must make a blocked open() or read() return with
+ * an IOException.
+ */
+public interface CarTransport {
+    /**
+     * Connect. Blocks until connected or failed.
+     */
+    void open() throws IOException;
+
+    /**
+     * Read what is available, blocking until at least one byte arrives.
+     *
+     * @return bytes read, or -1 at end of stream
+     */
+    int read(byte[] buffer, int offset, int length) throws IOException;
+
+    void write(byte[] data, int offset, int length) throws IOException;
+
+    void close() throws IOException;
+
+    /**
+     * @return identifies the remote end. Two transports with equal addresses reach the same car.
+     */
+    String getAddress();
+
+    /**
+     * @return human readable name, for UI
+     */
+    String getDisplayName();
+}
@@ -0,0 +1,124 @@
+package org.hamster.carz;
+
+/**
+ * Encodes motor commands into preallocated frame buffers.
+ * <p/>
+ * Nothing is allocated after construction, so this is safe to call at control rate.
+ * The returned frame is reused by the next encode call. That's fine for
+ * {@link BluetoothCarConnection#sendBytes(byte[], int)}, which copies it.
+ * <p/>
+ * See {@link BluetoothCommandSender} for both protocols. The binary protocol comes in the
+ * legacy 'H' 'S' L R form and as a {@link ProtocolV2} 'M' frame, see
+ * {@link #setProtocolVersion(int)}.
+ */
+public class CommandEncoder {
+    /**
+     * "HS:L" + int + ",R" + int + "\r\n", with room for two full ints.
+     */
+    private static final int TEXT_FRAME_MAX_LENGTH = 32;
+    private static final int TEXT_MIN_DIGITS = 3; /* Same as %03d */
+
+    private final boolean mTextMode;
+    private final byte[] mBinaryFrame = {'H', 'S', 0, 0};
+    private final byte[] mV2Frame = new byte[ProtocolV2.MAX_FRAME_LENGTH];
+    private final byte[] mTextFrame = new byte[TEXT_FRAME_MAX_LENGTH];
+    private final byte[] mTextStopFrame = {'H', 'S', ':', 'S', '\r', '\n'};
+    private byte[] mFrame;
+    private int mLength;
+    private int mProtocolVersion = ProtocolV2.LEGACY_VERSION;
+
+    /**
+     * @param textMode true to use the human readable (debug) protocol
+     */
+    public CommandEncoder(boolean textMode) {
+        mTextMode = textMode;
+        mTextFrame[0] = 'H';
+        mTextFrame[1] = 'S';
+        mTextFrame[2] = ':';
+        mTextFrame[3] = 'L';
+        encodeStop();
+    }
+
+    /**
+     * Pick the binary frame format for the next encode calls. Ignored in text mode.
+     *
+     * @param version What the connection negotiated, ProtocolV2.LEGACY_VERSION or VERSION
+     */
+    public void setProtocolVersion(int version) {
+        mProtocolVersion = version;
+    }
+
+    public void encodeStop() {
+        if (mTextMode) {
+            mFrame = mTextStopFrame;
+            mLength = mTextStopFrame.length;
+        } else {
+            encodeSpeeds(0, 0);
+        }
+    }
+
+    /**
+     * @param left  Left motor speed. Positive for forward, negative for backward
+     * @param right Right motor speed
+     */
+    public void encodeSpeeds(int left, int right) {
+        if (mTextMode) {
+            /* HS:L%03d,R%03d\r\n */
+            int pos = writeDecimal(left, 4);
+            mTextFrame[pos++] = ',';
+            mTextFrame[pos++] = 'R';
+            pos = writeDecimal(right, pos);
+            mTextFrame[pos++] = '\r';
+            mTextFrame[pos++] = '\n';
+            mFrame = mTextFrame;
+            mLength = pos;
+        } else if (mProtocolVersion >= ProtocolV2.VERSION) {
+            /* The writer thread stamps the real sequence number */
+            ProtocolV2.writeHeader(mV2Frame, ProtocolV2.TYPE_MOTOR, 0, 2);
+            mV2Frame[ProtocolV2.HEADER_LENGTH] = (byte) left;
+            mV2Frame[ProtocolV2.HEADER_LENGTH + 1] = (byte) right;
+            mFrame = mV2Frame;
+            mLength = ProtocolV2.finish(mV2Frame, 2);
+        } else {
+            mBinaryFrame[2] = (byte) left;
+            mBinaryFrame[3] = (byte) right;
+            mFrame = mBinaryFrame;
+            mLength = mBinaryFrame.length;
+        }
+    }
+
+    /**
+     * @return the last encoded frame. Only the first getLength() bytes are valid.
+     */
+    public byte[] getFrame() {
+        return mFrame;
+    }
+
+    public int getLength() {
+        return mLength;
+    }
+
+    /**
+     * Write value to mTextFrame like String.format("%03d") does, without allocating.
+     *
+     * @return position after the last written byte
+     */
+    private int writeDecimal(int value, int pos) {
+        /* Work with negative numbers so Integer.MIN_VALUE doesn't overflow */
+        int negative = value < 0 ? value : -value;
+        int minDigits = TEXT_MIN_DIGITS;
+        if (value < 0) {
+            mTextFrame[pos++] = '-';
+            minDigits--; /* The sign takes one place of the width */
+        }
+        int digits = 1;
+        for (int n = negative / 10; n != 0; n /= 10) digits++;
+        for (int i = digits; i < minDigits; i++) mTextFrame[pos++] = '0';
+        int end = pos + digits;
+        for (int i = end - 1; i >= pos; i--) {
+            mTextFrame[i] = (byte) ('0' - negative % 10);
+            negative /= 10;
+        }
+        return end;
+    }
+}
@@ -0,0 +1,92 @@
+package org.hamster.carz;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+/**
+ * Decouples the command rate from the touch digitizer's event rate.
+ * <p/>
+ * Sits between {@link TouchControllerListener} and a command listener (e.g.
+ * {@link BluetoothCommandSender}). Touch events only update the sampled state here; the
+ * target is called once per control tick with the latest TouchState pair, no matter how many
+ * touch events arrived in between.
+ * <p/>
+ * Ticks run on the handler's thread. The TouchState objects must not be modified on another
+ * thread meanwhile; {@link InputPipeline} runs this on its input thread with its own copies.
+ */
+public class ControlTickScheduler implements TouchControllerListener.OnTouchStateChangedListener {
+    public static final int RATE_20HZ = 20;
+    public static final int RATE_50HZ = 50;
+    public static final int RATE_100HZ = 100;
+
+    private final Handler mHandler;
+    private final TouchControllerListener.OnTouchStateChangedListener mTarget;
+    private TouchControllerListener.TouchState mLeftTouch;
+    private TouchControllerListener.TouchState mRightTouch;
+    private int mMaxWidth;
+    private int mMaxHeight;
+    private long mTickIntervalMs;
+    private long mNextTickTime;
+    private boolean mRunning;
+    private final Runnable mTick = new Runnable() {
+        @Override
+        public void run() {
+            if (!mRunning) return;
+            if (mLeftTouch != null) {
+                /* Nothing to sample before the first touch event */
+                mTarget.onTouchStateChanged(mLeftTouch, mRightTouch, mMaxWidth, mMaxHeight);
+            }
+            scheduleNextTick();
+        }
+    };
+
+    /**
+     * @param handler  Ticks are posted here
+     * @param rateHz   Control ticks per second, e.g. RATE_50HZ
+     * @param target   Will be called on every tick
+     */
+    public ControlTickScheduler(Handler handler, int rateHz,
+                                TouchControllerListener.OnTouchStateChangedListener target) {
+        mHandler = handler;
+        mTarget = target;
+        setRate(rateHz);
+    }
+
+    public void setRate(int rateHz) {
+        if (rateHz <= 0) throw new IllegalArgumentException("rateHz must be positive: " + rateHz);
+        mTickIntervalMs = 1000 / rateHz;
+    }
+
+    public void start() {
+        if (mRunning) return;
+        mRunning = true;
+        mNextTickTime = SystemClock.uptimeMillis();
+        mHandler.post(mTick);
+    }
+
+    public void stop() {
+        mRunning = false;
+        mHandler.removeCallbacks(mTick);
+    }
+
+    @Override
+    public void onTouchStateChanged(TouchControllerListener.TouchState left,
+                                    TouchControllerListener.TouchState right,
+                                    int maxWidth, int maxHeight) {
+        /* TouchState objects are updated in place, so keeping the references is enough */
+        mLeftTouch = left;
+        mRightTouch = right;
+        mMaxWidth = maxWidth;
+        mMaxHeight = maxHeight;
+    }
+
+    private void scheduleNextTick() {
+        long now = SystemClock.uptimeMillis();
+        mNextTickTime += mTickIntervalMs;
+        if (mNextTickTime <= now) {
+            /* We are late (handler thread was busy). Skip the missed ticks instead of bursting */
+            mNextTickTime = now + mTickIntervalMs;
+        }
+        mHandler.postAtTime(mTick, mNextTickTime);
+    }
+}
@@ -1,6 +1,5 @@
 package org.hamster.carz;
 
-import android.animation.ObjectAnimator;
 import android.app.Fragment;
 import android.content.ComponentName;
 import android.content.Context;
@@ -11,13 +10,16 @@ import android.os.Bundle;
 import android.os.Handler;
 import android.os.IBinder;
 import android.util.Log;
+import android.view.Choreographer;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.view.animation.DecelerateInterpolator;
+import android.view.animation.Interpolator;
+import android.widget.CompoundButton;
 import android.widget.TextView;
 
-import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Created by Hamster on 2015/12/20.
@@ -27,12 +29,91 @@ import java.util.ArrayList;
 public class ControllerFragment extends Fragment {
     private static final String TAG = "Carz_CtrlFrag";
     private static final boolean VDBG = false;
+    /**
+     * How many command frames per second we may send to the car.
+     */
+    private static final int CONTROL_RATE_HZ = ControlTickScheduler.RATE_50HZ;
+    private static final long LATENCY_OVERLAY_INTERVAL_MS = 500;
+    /**
+     * Shared by both bar animators. Interpolators keep no state, so one is enough.
+     */
+    private static final Interpolator RETURN_INTERPOLATOR = new DecelerateInterpolator(5f);
     private View mRootView;
     private EnergyBar mLeftBar;
     private EnergyBar mRightBar;
     private TextView mDistanceText;
-    private ArrayList<Integer> mBytesReceived;
+    /**
+     * The primary car's, from the service. Null until bound.
+     */
+    private TelemetryRegistry mTelemetry;
+    private TelemetryValue mDistance;
+    private DistanceTextUpdater mDistanceTextUpdater;
+    private TextView mLatencyText;
+    private Handler mHandler;
+    private final StringBuilder mLatencyBuilder = new StringBuilder(64);
+    /**
+     * Refreshes the latency overlay while it's shown.
+     */
+    private final Runnable mLatencyOverlayUpdater = new Runnable() {
+        @Override
+        public void run() {
+            LatencyHistogram histogram = mService == null ? null : mService.getCommandLatency();
+            mLatencyBuilder.setLength(0);
+            if (histogram == null || histogram.getCount() == 0) {
+                mLatencyBuilder.append("Input to wire: no data");
+            } else {
+                mLatencyBuilder.append("Input to wire (ms)\np50 ")
+                        .append(histogram.getValueAtPercentile(50))
+                        .append("  p90 ").append(histogram.getValueAtPercentile(90))
+                        .append("  p99 ").append(histogram.getValueAtPercentile(99))
+                        .append("  max ").append(histogram.getMax());
+            }
+            LinkQualityMonitor link = mService == null ? null : mService.getLinkQuality();
+            if (link != null && link.getLastHeardNanos() != 0) {
+                mLatencyBuilder.append("\nLink: heard ").append(link.getMillisSinceLastHeard())
+                        .append("ms ago");
+                long rtt = link.getMeanRttMicros();
+                if (rtt >= 0) {
+                    mLatencyBuilder.append("  rtt ").append(rtt / 1000)
+                            .append("  jitter ").append(Math.max(link.getJitterMicros(), 0) / 1000)
+                            .append("  loss ").append(link.getLossPercent()).append('%');
+                }
+            }
+            mLatencyText.setText(mLatencyBuilder);
+            mHandler.postDelayed(this, LATENCY_OVERLAY_INTERVAL_MS);
+        }
+    };
+    /**
+     * Long press on the distance text to show/hide the latency overlay.
+     */
+    private View.OnLongClickListener latencyToggleListener = new View.OnLongClickListener() {
+        @Override
+        public boolean onLongClick(View v) {
+            if (mLatencyText.getVisibility() == View.VISIBLE) {
+                mLatencyText.setVisibility(View.GONE);
+                mHandler.removeCallbacks(mLatencyOverlayUpdater);
+            } else {
+                mLatencyText.setVisibility(View.VISIBLE);
+                mHandler.post(mLatencyOverlayUpdater);
+            }
+            return true;
+        }
+    };
     private BluetoothService mService;
+    private InputPipeline mInputPipeline;
+    private TiltInputSource mTiltSource;
+    private boolean mTiltSteering;
+    /**
+     * Shown if the device has a usable sensor. Not in the action bar, we hide that.
+     */
+    private CompoundButton mTiltToggle;
+    private View.OnClickListener tiltToggleListener = new View.OnClickListener() {
+        @Override
+        public void onClick(View v) {
+            setTiltSteering(!mTiltSteering);
+        }
+    };
+    private BarHeightAdjuster mBarHeightAdjuster;
     private View.OnClickListener fabOnClickListener = new View.OnClickListener() {
         @Override
         public void onClick(View v) {
@@ -43,7 +124,13 @@ public class ControllerFragment extends Fragment {
         @Override
         public void onServiceConnected(ComponentName name, IBinder service) {
             mService = ((BluetoothService.BluetoothServiceBinder) service).getService();
-            mService.setOnDataReceivedListener(new DataReceiver());
+            TelemetryRegistry telemetry = mService.getTelemetry();
+            if (telemetry != null) {
+                mTelemetry = telemetry;
+                mDistance = telemetry.getValue(DistanceFrame.TAG, 0);
+                telemetry.addSubscriber(mDistanceTextUpdater);
+                mDistanceTextUpdater.arm(); /* Show what came in before we subscribed */
+            }
         }
 
         @Override
@@ -66,23 +153,44 @@ public class ControllerFragment extends Fragment {
         intent.setClass(getActivity(), BluetoothService.class);
         getActivity().bindService(intent, btServConn, Context.BIND_AUTO_CREATE);
 
-        mBytesReceived = new ArrayList<>(4);
-
         mRootView = inflater.inflate(R.layout.frag_touch_controller, container, false);
         mRootView.findViewById(R.id.fab_disconnect).setOnClickListener(fabOnClickListener);
         mLeftBar = (EnergyBar) mRootView.findViewById(R.id.energy_bar_left);
         mRightBar = (EnergyBar) mRootView.findViewById(R.id.energy_bar_right);
         mDistanceText = (TextView) mRootView.findViewById(R.id.tv_bt);
+        mDistanceTextUpdater = new DistanceTextUpdater();
+        mLatencyText = (TextView) mRootView.findViewById(R.id.tv_latency);
+        mDistanceText.setOnLongClickListener(latencyToggleListener);
+        mHandler = new Handler();
 
         mLeftBar.setDrawPercentage(0);
         mRightBar.setDrawPercentage(0);
 
         TouchControllerListener controllerListener = new TouchControllerListener();
-        BarHeightAdjuster adjuster = new BarHeightAdjuster();
+        mBarHeightAdjuster = new BarHeightAdjuster();
         BluetoothCommandSender sender = new BluetoothCommandSender(activity);
+        mInputPipeline = new InputPipeline(CONTROL_RATE_HZ);
+        controllerListener.addTouchStateChangedListener(
+                mInputPipeline.getSourceInput(InputPipeline.SOURCE_TOUCH));
+        /* Joystick events go to the focused view */
+        GamepadInputSource gamepad = new GamepadInputSource();
+        gamepad.addTouchStateChangedListener(
+                mInputPipeline.getSourceInput(InputPipeline.SOURCE_GAMEPAD));
+        mRootView.setFocusableInTouchMode(true);
+        mRootView.requestFocus();
+        mRootView.setOnGenericMotionListener(gamepad);
+        mTiltSource = new TiltInputSource(activity);
+        mTiltSource.addTouchStateChangedListener(
+                mInputPipeline.getSourceInput(InputPipeline.SOURCE_TILT));
+        mTiltToggle = (CompoundButton) mRootView.findViewById(R.id.toggle_tilt_steering);
+        if (mTiltSource.isAvailable()) {
+            mTiltToggle.setVisibility(View.VISIBLE);
+            mTiltToggle.setOnClickListener(tiltToggleListener);
+        }
 
-        controllerListener.addTouchStateChangedListener(sender);
-        controllerListener.addTouchStateChangedListener(adjuster);
+        mInputPipeline.addProcessingListener(sender);
+        mInputPipeline.setUiListener(mBarHeightAdjuster);
+        mInputPipeline.start();
 
         View touchController = mRootView.findViewById(R.id.touch_area);
         touchController.setOnTouchListener(controllerListener);
@@ -90,9 +198,45 @@ public class ControllerFragment extends Fragment {
         return mRootView;
     }
 
+    @Override
+    public void onResume() {
+        super.onResume();
+        if (mTiltSteering) mTiltSource.start();
+        mDistanceTextUpdater.start();
+    }
+
+    @Override
+    public void onPause() {
+        super.onPause();
+        mTiltSource.stop(); /* Sensors cost power */
+        mDistanceTextUpdater.stop();
+    }
+
+    /**
+     * Drive by tilting the device. The orientation when it's turned on is neutral.
+     */
+    private void setTiltSteering(boolean enabled) {
+        if (enabled) {
+            if (mTiltSource.start()) {
+                mInputPipeline.setActiveSource(InputPipeline.SOURCE_TILT);
+                mTiltSteering = true;
+            }
+        } else {
+            mTiltSource.stop();
+            mInputPipeline.setActiveSource(InputPipeline.SOURCE_TOUCH);
+            mTiltSteering = false;
+        }
+        /* The button toggled itself already, which is wrong if the sensor didn't start */
+        mTiltToggle.setChecked(mTiltSteering);
+    }
+
     @Override
     public void onDetach() {
         super.onDetach();
+        mInputPipeline.quit();
+        mBarHeightAdjuster.cancel();
+        mHandler.removeCallbacks(mLatencyOverlayUpdater);
+        if (mTelemetry != null) mTelemetry.removeSubscriber(mDistanceTextUpdater);
         getActivity().unbindService(btServConn);
         final MainActivity activity = (MainActivity) getActivity();
         new Handler().postDelayed(new Runnable() {
@@ -103,79 +247,129 @@ public class ControllerFragment extends Fragment {
         }, 500);
     }
 
-    private class DataReceiver implements BluetoothCarConnection.DataReceivedListener {
+    /**
+     * Updates the distance text at most once per vsync, no matter how fast telemetry comes in.
+     * The values are decoded by the service on the detection thread. A new distance arms one
+     * frame callback, so without telemetry (e.g. legacy cars) the UI thread stays asleep. The
+     * text is built in a reused char buffer.
+     */
+    private class DistanceTextUpdater implements Choreographer.FrameCallback,
+            TelemetryRegistry.Subscriber {
+        private static final String PREFIX = "Current space ahead: ";
+        private static final String INFINITY_TEXT = "To the Infinity and Beyond!";
+        private final Choreographer mChoreographer = Choreographer.getInstance();
+        private final char[] mText = new char[PREFIX.length() + 8]; /* "X.XXm" */
+        private int mLastVersion;
+        private boolean mRunning;
+        /**
+         * A frame callback is (about to be) posted. Set by the detection thread, so a burst of
+         * frames posts only once.
+         */
+        private final AtomicBoolean mPending = new AtomicBoolean();
+        private final Runnable mArmer = new Runnable() {
+            @Override
+            public void run() {
+                arm();
+            }
+        };
+
+        DistanceTextUpdater() {
+            PREFIX.getChars(0, PREFIX.length(), mText, 0);
+        }
+
+        void start() {
+            if (mRunning) return;
+            mRunning = true;
+            arm(); /* Catch up on what came in while paused */
+        }
+
+        void stop() {
+            mRunning = false;
+            mChoreographer.removeFrameCallback(this);
+            mPending.set(false);
+        }
+
+        /**
+         * UI thread. Post one frame callback.
+         */
+        void arm() {
+            if (!mRunning) {
+                mPending.set(false); /* start() arms again */
+                return;
+            }
+            mPending.set(true);
+            mChoreographer.removeFrameCallback(this);
+            mChoreographer.postFrameCallback(this);
+        }
+
         @Override
-        public void onDataReceived(int data) {
-            mBytesReceived.add(data);
-            if (mBytesReceived.size() == 4) {
-                // Received 4 bytes
-                if (mBytesReceived.get(0) == 'D') {
-                    // Data integrity
-                    final String distanceString;
-                    if (mBytesReceived.get(1) < 10) {
-                        distanceString = "Current space ahead: " +
-                                String.valueOf(mBytesReceived.get(1)
-                                        + mBytesReceived.get(2) * 0.1f
-                                        + mBytesReceived.get(3) * 0.01f) +
-                                "m";
-                    } else {
-                        distanceString = "To the Infinity and Beyond!";
-                    }
-                    mDistanceText.post(new Runnable() {
-                        @Override
-                        public void run() {
-                            mDistanceText.setText(distanceString);
-                        }
-                    });
-                    mBytesReceived.clear();
-                }
+        public void onTelemetry(int tag, int channel, int value) {
+            if (tag != DistanceFrame.TAG || channel != 0) return;
+            if (mPending.compareAndSet(false, true)) mHandler.post(mArmer);
+        }
+
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            /* Before reading, so a value published from now on arms the next frame */
+            mPending.set(false);
+            if (!mRunning) return;
+            TelemetryValue distance = mDistance;
+            if (distance == null) return;
+            long snapshot = distance.snapshot();
+            int version = TelemetryValue.version(snapshot);
+            if (version != mLastVersion) {
+                mLastVersion = version;
+                show(TelemetryValue.value(snapshot));
             }
         }
+
+        private void show(int centimeters) {
+            if (centimeters == DistanceFrame.INFINITE) {
+                mDistanceText.setText(INFINITY_TEXT);
+                return;
+            }
+            int pos = PREFIX.length();
+            /* Distance is always below 10m here, see DistanceFrame */
+            mText[pos++] = (char) ('0' + centimeters / 100);
+            mText[pos++] = '.';
+            mText[pos++] = (char) ('0' + centimeters / 10 % 10);
+            mText[pos++] = (char) ('0' + centimeters % 10);
+            mText[pos++] = 'm';
+            mDistanceText.setText(mText, 0, pos);
+        }
     }
 
     /**
      * Adjusts EnergyBars' height according to the distance fingers moved.
      */
-    private class BarHeightAdjuster implements TouchControllerListener.OnTouchStateChangedListener {
-        private ObjectAnimator animatorLeft;
-        private ObjectAnimator animatorRight;
-
-        public BarHeightAdjuster() {
-            animatorLeft = ObjectAnimator.ofFloat(mLeftBar, "DrawPercentage", 0); // 0 is stub
-            animatorRight = ObjectAnimator.ofFloat(mRightBar, "DrawPercentage", 0);
-        }
+    private class BarHeightAdjuster implements InputPipeline.UiListener {
+        private static final long RETURN_DURATION_MS = 1000;
+        private final FloatPropertyAnimator<EnergyBar> mLeftAnimator = new FloatPropertyAnimator<>(
+                mLeftBar, EnergyBar.DRAW_PERCENTAGE, RETURN_INTERPOLATOR, RETURN_DURATION_MS);
+        private final FloatPropertyAnimator<EnergyBar> mRightAnimator = new FloatPropertyAnimator<>(
+                mRightBar, EnergyBar.DRAW_PERCENTAGE, RETURN_INTERPOLATOR, RETURN_DURATION_MS);
 
         @Override
-        public void onTouchStateChanged(TouchControllerListener.TouchState left,
-                                        TouchControllerListener.TouchState right,
-                                        int maxWidth, int maxHeight) {
+        public void onBarLevelsChanged(boolean active, float left, float right) {
             if (VDBG)
-                Log.d(TAG, "barHeight: onTouchStateChanged: left.start = " + left.mStartPoint
-                        + "left.end = " + left.mCurrentPoint
-                        + "right.start = " + right.mStartPoint
-                        + "right.end = " + right.mCurrentPoint);
-            if (!(left.isValid() && right.isValid())) {
-                float percentLeft = mLeftBar.getDrawPercentage();
-                float percentRight = mRightBar.getDrawPercentage();
-                /* No/One finger is on screen. Animate the bars back */
-                if (percentLeft != 0) {
-                    animatorLeft.setFloatValues(percentLeft, 0);
-                    animatorLeft.setDuration(1000);
-                    animatorLeft.setInterpolator(new DecelerateInterpolator(5f));
-                    animatorLeft.start();
-                }
-                if (percentRight != 0) {
-                    animatorRight.setFloatValues(percentRight, 0);
-                    animatorRight.setDuration(1000);
-                    animatorRight.setInterpolator(new DecelerateInterpolator(5f));
-                    animatorRight.start();
-                }
+                Log.d(TAG, "barHeight: onBarLevelsChanged: active = " + active
+                        + " left = " + left + " right = " + right);
+            if (!active) {
+                /* No/One finger is on screen. Animate the bars back. Repeated calls while
+                 * the animation runs don't restart it */
+                mLeftAnimator.animateTo(0);
+                mRightAnimator.animateTo(0);
             } else {
-                animatorLeft.end();
-                animatorRight.end();
-                mLeftBar.setDrawPercentage((left.mStartPoint.y - left.mCurrentPoint.y) / (float) maxHeight);
-                mRightBar.setDrawPercentage((right.mStartPoint.y - right.mCurrentPoint.y) / (float) maxHeight);
+                mLeftAnimator.cancel();
+                mRightAnimator.cancel();
+                mLeftBar.setDrawPercentage(left);
+                mRightBar.setDrawPercentage(right);
             }
         }
+
+        void cancel() {
+            mLeftAnimator.cancel();
+            mRightAnimator.cancel();
+        }
     }
 }
@@ -0,0 +1,65 @@
+package org.hamster.carz;
+
+/**
+ * The distance telemetry frame: 'D' d0 d1 d2
+ * <p/>
+ * Distance ahead in meters is d0 + d1 * 0.1 + d2 * 0.01, so d1 and d2 are single digits.
+ * d0 >= 10 means there is nothing ahead.
+ * <p/>
+ * Decoding works on primitives only, nothing is boxed or allocated.
+ */
+public final class DistanceFrame {
+    public static final int TAG = 'D';
+    public static final int LENGTH = 4;
+    /**
+     * Returned by {@link #decodeCentimeters} when nothing is ahead.
+     */
+    public static final int INFINITE = -1;
+
+    /**
+     * Rejects frames whose digits are out of range. A 'D' found in the middle of garbage
+     * (or a frame we started reading at the wrong byte) almost never passes this, which lets
+     * the splitter resync on the next real header.
+     */
+    static final TelemetryFrameSplitter.FrameValidator VALIDATOR =
+            new TelemetryFrameSplitter.FrameValidator() {
+                @Override
+                public boolean isValid(ByteRingBuffer ring, int length) {
+                    return ring.peek(2) <= 9 && ring.peek(3) <= 9;
+                }
+            };
+
+    /**
+     * One channel, centimeters or INFINITE. See {@link TelemetryRegistry}.
+     */
+    public static final TelemetryDecoder DECODER = new TelemetryDecoder() {
+        @Override
+        public int getChannelCount() {
+            return 1;
+        }
+
+        @Override
+        public int getFrameLength() {
+            return LENGTH;
+        }
+
+        @Override
+        public void decode(TelemetryFrameBatch frames, int index, int[] values) {
+            values[0] = decodeCentimeters(frames, index);
+        }
+    };
+
+    private DistanceFrame() {
+    }
+
+    /**
+     * @param frames Batch holding a distance frame
+     * @param index  Index of that frame in frames
+     * @return distance in centimeters, or INFINITE
+     */
+    public static int decodeCentimeters(TelemetryFrameBatch frames, int index) {
+        int meters = frames.getByte(index, 1);
+        if (meters >= 10) return INFINITE;
+        return meters * 100 + frames.getByte(index, 2) * 10 + frames.getByte(index, 3);
+    }
+}
@@ -2,6 +2,7 @@ package org.hamster.carz;
 
 import android.content.Context;
 import android.content.res.TypedArray;
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Paint;
 import android.util.AttributeSet;
@@ -16,6 +17,12 @@ import android.view.View;
  * at left and right side of screen.
  * <p/>
  * layout_gravity
+ * <p/>
+ * The bars themselves never change, only how much of them is shown. So they are drawn once
+ * into an alpha-only bitmap (tinted with barColor when drawn), and onDraw just draws the part
+ * of it below the current level. A level change only invalidates the rows between the old and
+ * the new visible top, and nothing at all if the visible top stays the same (e.g. the level
+ * moves inside the spacing between two bars).
  */
 public class EnergyBar extends View {
 
@@ -40,6 +47,19 @@ public class EnergyBar extends View {
             barWidthDelta, barHeightDelta,
             maxHeight, maxWidth,
             drawMaxWidth, drawMaxHeight;
+    /**
+     * Bar rectangles from calculateSizes(), bottom bar first.
+     */
+    private int[] mBarLeft, mBarTop, mBarRight, mBarBottom;
+    /**
+     * All bars, drawn once. Only alpha, the color comes from mPaint.
+     */
+    private Bitmap mBarCache;
+    private boolean mBarCacheDirty = true;
+    /**
+     * First visible row at the current level, see getVisibleTop().
+     */
+    private int mVisibleTop;
 
     public EnergyBar(Context context, AttributeSet attrs) {
         super(context, attrs);
@@ -98,41 +118,83 @@ public class EnergyBar extends View {
                 drawMaxHeight = maxHeight;
                 break;
         }
+        precomputeBars();
+    }
+
+    /**
+     * Bar rectangles, the same ones the old per-frame loop computed.
+     */
+    private void precomputeBars() {
+        if (mBarLeft == null || mBarLeft.length != mBarCount) {
+            mBarLeft = new int[mBarCount];
+            mBarTop = new int[mBarCount];
+            mBarRight = new int[mBarCount];
+            mBarBottom = new int[mBarCount];
+        }
+        for (int i = 0; i < mBarCount; i++) {
+            int currentX = baseX + i * deltaX;
+            int currentY = baseY + i * deltaY;
+            int targetX = currentX + barWidthBase + i * barWidthDelta;
+            int targetY = currentY + barHeightBase + i * barHeightDelta;
+            mBarLeft[i] = Math.min(currentX, targetX);
+            mBarRight[i] = Math.max(currentX, targetX);
+            mBarTop[i] = Math.min(currentY, targetY);
+            mBarBottom[i] = Math.max(currentY, targetY);
+        }
+        mVisibleTop = getVisibleTop(drawMaxHeight);
+        mBarCacheDirty = true;
+    }
+
+    /**
+     * @return first row that shows bar pixels at this level (maxHeight if none). Levels that
+     * end in the spacing between two bars give the same result as the top of the bar below.
+     */
+    private int getVisibleTop(int level) {
+        int clipTop = baseY - level;
+        int visibleTop = maxHeight;
+        for (int i = 0; i < mBarCount; i++) {
+            if (clipTop >= mBarBottom[i]) break; /* This bar and all above are hidden */
+            visibleTop = Math.max(clipTop, mBarTop[i]);
+            if (clipTop > mBarTop[i]) break; /* Cut through this bar */
+        }
+        return visibleTop;
+    }
+
+    private void buildBarCache() {
+        if (mBarCache == null || mBarCache.getWidth() != maxWidth
+                || mBarCache.getHeight() != maxHeight) {
+            if (mBarCache != null) mBarCache.recycle();
+            mBarCache = Bitmap.createBitmap(maxWidth, maxHeight, Bitmap.Config.ALPHA_8);
+        } else {
+            mBarCache.eraseColor(0);
+        }
+        Canvas canvas = new Canvas(mBarCache);
+        for (int i = 0; i < mBarCount; i++) {
+            canvas.drawRect(mBarLeft[i], mBarTop[i], mBarRight[i], mBarBottom[i], mPaint);
+        }
+        mBarCacheDirty = false;
     }
 
     @Override
     protected void onDraw(Canvas canvas) {
-        int drawnBars = 0;
-        int currentX, currentY, targetX, targetY;
-        int drawStartX, drawStartY, drawEndX, drawEndY;
-        while (true) {
-            /* Draw bars one by one */
-            if (drawnBars >= mBarCount) break;
-            currentX = baseX + drawnBars * deltaX;
-            currentY = baseY + drawnBars * deltaY;
-            targetX = currentX + barWidthBase + drawnBars * barWidthDelta;
-            targetY = currentY + barHeightBase + drawnBars * barHeightDelta;
-            drawStartX = Math.min(currentX, targetX);
-            drawEndX = Math.max(currentX, targetX);
-            drawStartY = Math.min(currentY, targetY);
-            drawEndY = Math.max(currentY, targetY);
-            /* Respect drawMaxHeight/Width */
-            switch (mLayoutGravity) {
-                case Gravity.LEFT:
-                case Gravity.RIGHT:
-                    if (baseY - drawStartY > drawMaxHeight) {
-                        drawStartY = baseY - drawMaxHeight;
-                        drawnBars = mBarCount; /* Terminate drawing now */
-                    }
-                    break;
-            }
-            canvas.drawRect(drawStartX, drawStartY, drawEndX, drawEndY, mPaint);
-            drawnBars++;
-            if (VDBG) {
-                Log.d(TAG, "onDraw: drawRect " + Math.min(currentX, targetX) + " " + Math.min(currentY, targetY) + " " +
-                        Math.max(currentX, targetX) + " " + Math.max(currentY, targetY));
-            }
+        if (maxWidth <= 0 || maxHeight <= 0 || mBarLeft == null) return;
+        if (mBarCacheDirty) buildBarCache();
+        if (mVisibleTop >= maxHeight) return;
+        canvas.save();
+        canvas.clipRect(0, mVisibleTop, maxWidth, maxHeight);
+        canvas.drawBitmap(mBarCache, 0, 0, mPaint);
+        canvas.restore();
+        if (VDBG) Log.d(TAG, "onDraw: visible from " + mVisibleTop);
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        if (mBarCache != null) {
+            mBarCache.recycle();
+            mBarCache = null;
         }
+        mBarCacheDirty = true;
     }
 
     @Override
@@ -155,6 +217,22 @@ public class EnergyBar extends View {
         calculateSizes();
     }
 
+    /**
+     * Typed accessor for {@link FloatPropertyAnimator}, no reflection or boxing.
+     */
+    public static final FloatValueProperty<EnergyBar> DRAW_PERCENTAGE =
+            new FloatValueProperty<EnergyBar>("DrawPercentage") {
+                @Override
+                public void setValue(EnergyBar bar, float value) {
+                    bar.setDrawPercentage(value);
+                }
+
+                @Override
+                public float getValue(EnergyBar bar) {
+                    return bar.getDrawPercentage();
+                }
+            };
+
     public float getDrawPercentage() {
         return (float) drawMaxHeight / maxHeight;
     }
@@ -171,7 +249,13 @@ public class EnergyBar extends View {
             case Gravity.RIGHT:
             case Gravity.LEFT:
                 drawMaxHeight = (int) (percentage * maxHeight);
-                invalidate();
+                if (mBarLeft == null) break; /* Not measured yet */
+                int visibleTop = getVisibleTop(drawMaxHeight);
+                if (visibleTop == mVisibleTop) break; /* Looks the same */
+                /* Only the rows between the old and the new top change */
+                invalidate(0, Math.min(visibleTop, mVisibleTop),
+                        maxWidth, Math.max(visibleTop, mVisibleTop));
+                mVisibleTop = visibleTop;
                 if (VDBG)
                     Log.d(TAG, "setDrawPercentage: drawMaxHeight is " + drawMaxHeight);
                 break;
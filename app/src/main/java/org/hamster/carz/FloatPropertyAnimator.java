@@ -0,0 +1,88 @@
+package org.hamster.carz;
+
+import android.animation.TimeInterpolator;
+import android.view.Choreographer;
+
+/**
+ * Animates one float property of one object on Choreographer frames.
+ * <p/>
+ * Made for values that get retargeted all the time (like the energy bars while fingers go
+ * up and down): animateTo() while running continues from the current value towards the new
+ * end instead of restarting, and asking for the end it's already heading to does nothing.
+ * Nothing is allocated per frame or per retarget, and there is no reflection.
+ * <p/>
+ * UI thread only.
+ */
+public class FloatPropertyAnimator<T> implements Choreographer.FrameCallback {
+    private final T mTarget;
+    private final FloatValueProperty<T> mProperty;
+    private final TimeInterpolator mInterpolator;
+    private final long mDurationMs;
+    private final Choreographer mChoreographer = Choreographer.getInstance();
+    private float mStartValue;
+    private float mEndValue;
+    /**
+     * Frame time of the first frame, -1 until that frame comes.
+     */
+    private long mStartTimeMs = -1;
+    private boolean mRunning;
+
+    /**
+     * @param interpolator Can be shared between animators, it's only read
+     */
+    public FloatPropertyAnimator(T target, FloatValueProperty<T> property,
+                                 TimeInterpolator interpolator, long durationMs) {
+        mTarget = target;
+        mProperty = property;
+        mInterpolator = interpolator;
+        mDurationMs = durationMs;
+    }
+
+    /**
+     * Animate from the current value to end. Retargets a running animation in place.
+     */
+    public void animateTo(float end) {
+        float current = mProperty.getValue(mTarget);
+        if (mRunning) {
+            if (end == mEndValue) return; /* Already on its way */
+        } else if (current == end) {
+            return;
+        }
+        mStartValue = current;
+        mEndValue = end;
+        mStartTimeMs = -1;
+        if (!mRunning) {
+            mRunning = true;
+            mChoreographer.postFrameCallback(this);
+        }
+    }
+
+    /**
+     * Stop where it is. The value is left as it was on the last frame.
+     */
+    public void cancel() {
+        if (!mRunning) return;
+        mRunning = false;
+        mChoreographer.removeFrameCallback(this);
+    }
+
+    public boolean isRunning() {
+        return mRunning;
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        if (!mRunning) return;
+        long now = frameTimeNanos / 1000000;
+        if (mStartTimeMs < 0) mStartTimeMs = now;
+        float fraction = mDurationMs > 0 ? (float) (now - mStartTimeMs) / mDurationMs : 1;
+        if (fraction >= 1) {
+            mRunning = false;
+            mProperty.setValue(mTarget, mEndValue);
+            return;
+        }
+        float eased = mInterpolator.getInterpolation(fraction);
+        mProperty.setValue(mTarget, mStartValue + (mEndValue - mStartValue) * eased);
+        mChoreographer.postFrameCallback(this);
+    }
+}
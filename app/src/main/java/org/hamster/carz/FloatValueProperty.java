@@ -0,0 +1,31 @@
+package org.hamster.carz;
+
+import android.util.Property;
+
+/**
+ * A Property with primitive float accessors, so it can be animated without boxing.
+ * android.util.FloatProperty does the same, but only from API 24.
+ * <p/>
+ * {@link FloatPropertyAnimator} only uses the primitive methods. The boxed ones are there
+ * so the property still works with ObjectAnimator and friends.
+ */
+public abstract class FloatValueProperty<T> extends Property<T, Float> {
+
+    public FloatValueProperty(String name) {
+        super(Float.class, name);
+    }
+
+    public abstract void setValue(T object, float value);
+
+    public abstract float getValue(T object);
+
+    @Override
+    public void set(T object, Float value) {
+        setValue(object, value);
+    }
+
+    @Override
+    public Float get(T object) {
+        return getValue(object);
+    }
+}
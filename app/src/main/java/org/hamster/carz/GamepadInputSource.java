@@ -0,0 +1,136 @@
+package org.hamster.carz;
+
+import android.view.InputDevice;
+import android.view.MotionEvent;
+import android.view.View;
+
+import java.util.ArrayList;
+
+/**
+ * Drives the car with the sticks of a gamepad or joystick, tank style: the left stick's
+ * vertical axis is the left motor, the right stick's (AXIS_RZ by default) the right one.
+ * <p/>
+ * Produces the same left/right TouchState pair as {@link TouchControllerListener}, as if two
+ * fingers had started in the middle of a VIRTUAL_HEIGHT tall view and moved by the stick's
+ * deflection. So {@link BluetoothCommandSender} (and the bars) need no changes. Every
+ * historical axis sample of a batched event goes into the TouchState's filter window, the
+ * sticks' resolution is kept by the large virtual height.
+ * <p/>
+ * A stick inside the dead-band means stop, not the creep of a finger at rest, whichever way
+ * it leans: see {@link TouchControllerListener.TouchState#mStopInDeadBand}. So the other stick
+ * alone can pivot the car.
+ * <p/>
+ * Set it as the OnGenericMotionListener of a focused view. Events that aren't joystick moves
+ * are left to others.
+ */
+public class GamepadInputSource implements View.OnGenericMotionListener {
+    /**
+     * Height of the synthesized view. Full deflection is full speed.
+     */
+    private static final int VIRTUAL_HEIGHT = 10000;
+
+    private final ArrayList<TouchControllerListener.OnTouchStateChangedListener> mListeners =
+            new ArrayList<>(1);
+    private final TouchControllerListener.TouchState mLeftStick = new TouchControllerListener.TouchState();
+    private final TouchControllerListener.TouchState mRightStick = new TouchControllerListener.TouchState();
+    private int mLeftAxis = MotionEvent.AXIS_Y;
+    private int mRightAxis = MotionEvent.AXIS_RZ;
+    /**
+     * Flat (center dead-zone) of the axes, cached per device.
+     */
+    private int mDeviceId = -1;
+    private float mLeftFlat;
+    private float mRightFlat;
+    private boolean mActive;
+
+    public void addTouchStateChangedListener(TouchControllerListener.OnTouchStateChangedListener listener) {
+        mListeners.add(listener);
+    }
+
+    /**
+     * Gamepads disagree on where the right stick is, AXIS_RY is also common.
+     */
+    public void setAxes(int leftAxis, int rightAxis) {
+        mLeftAxis = leftAxis;
+        mRightAxis = rightAxis;
+        mDeviceId = -1;
+    }
+
+    @Override
+    public boolean onGenericMotion(View v, MotionEvent event) {
+        if ((event.getSource() & InputDevice.SOURCE_JOYSTICK) != InputDevice.SOURCE_JOYSTICK
+                || event.getActionMasked() != MotionEvent.ACTION_MOVE) {
+            return false;
+        }
+        if (event.getDeviceId() != mDeviceId) updateFlats(event);
+
+        /* Oldest first, the current values are the newest sample */
+        int historySize = event.getHistorySize();
+        for (int h = 0; h < historySize; h++) {
+            addSample(event.getHistoricalAxisValue(mLeftAxis, h),
+                    event.getHistoricalAxisValue(mRightAxis, h), event.getHistoricalEventTime(h));
+        }
+        addSample(event.getAxisValue(mLeftAxis), event.getAxisValue(mRightAxis),
+                event.getEventTime());
+
+        for (int i = 0; i < mListeners.size(); i++) {
+            mListeners.get(i).onTouchStateChanged(mLeftStick, mRightStick, VIRTUAL_HEIGHT, VIRTUAL_HEIGHT);
+        }
+        return true;
+    }
+
+    private void addSample(float left, float right, long eventTime) {
+        left = removeFlat(left, mLeftFlat);
+        right = removeFlat(right, mRightFlat);
+        if (left == 0 && right == 0) {
+            /* Both sticks centered, like lifting both fingers */
+            if (mActive) {
+                mLeftStick.invalidate();
+                mRightStick.invalidate();
+                mLeftStick.mEventTime = mRightStick.mEventTime = eventTime;
+                mActive = false;
+            }
+            return;
+        }
+        if (!mActive) {
+            mLeftStick.mStartPoint.set(0, VIRTUAL_HEIGHT);
+            mRightStick.mStartPoint.set(0, VIRTUAL_HEIGHT);
+            mActive = true;
+        }
+        updateStick(mLeftStick, left, eventTime);
+        updateStick(mRightStick, right, eventTime);
+    }
+
+    private static void updateStick(TouchControllerListener.TouchState stick, float value,
+                                    long eventTime) {
+        /* Pushing a stick forward gives negative values, just like y in a view */
+        int y = VIRTUAL_HEIGHT + Math.round(value * VIRTUAL_HEIGHT);
+        stick.mCurrentPoint.set(0, y);
+        stick.mEventTime = eventTime;
+        stick.mStopInDeadBand = true;
+        stick.addSample(0, y, eventTime);
+    }
+
+    /**
+     * @return value with the flat cut out and the rest stretched back to -1~1
+     */
+    private static float removeFlat(float value, float flat) {
+        float magnitude = Math.abs(value);
+        if (magnitude <= flat) return 0;
+        magnitude = Math.min((magnitude - flat) / (1 - flat), 1);
+        return value < 0 ? -magnitude : magnitude;
+    }
+
+    private void updateFlats(MotionEvent event) {
+        mDeviceId = event.getDeviceId();
+        InputDevice device = event.getDevice();
+        mLeftFlat = getFlat(device, mLeftAxis, event.getSource());
+        mRightFlat = getFlat(device, mRightAxis, event.getSource());
+    }
+
+    private static float getFlat(InputDevice device, int axis, int source) {
+        InputDevice.MotionRange range = device == null ? null : device.getMotionRange(axis, source);
+        /* Some devices report no flat at all, keep a small one against drift */
+        return range == null ? 0.1f : Math.min(Math.max(range.getFlat(), 0.05f), 0.5f);
+    }
+}
@@ -0,0 +1,252 @@
+package org.hamster.carz;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Moves touch processing off the UI thread, in three stages:
+ * <p/>
+ * 1. UI thread: an input source ({@link TouchControllerListener}, {@link GamepadInputSource},
+ * {@link TiltInputSource}) produces the left/right TouchState pair, which is copied into a {@link TouchSnapshotBuffer}.
+ * Nothing else runs here, so whatever the listeners below do can't delay the next input event.
+ * Only the active source gets through, see {@link #getSourceInput(int)}.
+ * <p/>
+ * 2. Input thread: a {@link ControlTickScheduler} ticks on a dedicated HandlerThread. Each tick
+ * takes the newest snapshot and calls the processing listeners with it (mapping, filtering and
+ * encoding in {@link BluetoothCommandSender}).
+ * <p/>
+ * 3. UI thread: the only thing the UI needs, the bar levels, is published as one packed value.
+ * A change posts a single dispatch to the UI thread, further changes before it runs are
+ * coalesced into it.
+ */
+public class InputPipeline {
+    public static final int SOURCE_TOUCH = 0;
+    public static final int SOURCE_GAMEPAD = 1;
+    public static final int SOURCE_TILT = 2;
+    private static final int SOURCE_COUNT = 3;
+    private static final String THREAD_NAME = "Carz_Input";
+    /**
+     * Published instead of the levels while less than two fingers are down.
+     */
+    private static final long NO_LEVELS = pack(Float.NaN, Float.NaN);
+
+    private final TouchSnapshotBuffer mBuffer;
+    private final HandlerThread mThread;
+    private final Handler mInputHandler;
+    private final Handler mUiHandler;
+    private final ControlTickScheduler mScheduler;
+    private final ArrayList<TouchControllerListener.OnTouchStateChangedListener> mProcessingListeners =
+            new ArrayList<>(2);
+    private UiListener mUiListener;
+
+    /* Stage 1, UI thread only */
+    private final SourceInput[] mSourceInputs = new SourceInput[SOURCE_COUNT];
+    private int mActiveSource = SOURCE_TOUCH;
+    /**
+     * Whether the active source is being used (a finger down, a stick off center).
+     */
+    private boolean mActiveSourceInUse;
+    private final TouchControllerListener.TouchState mReleasedTouch =
+            new TouchControllerListener.TouchState();
+
+    /* Input thread only: the state handed to the processing listeners */
+    private final TouchControllerListener.TouchState mLeftTouch;
+    private final TouchControllerListener.TouchState mRightTouch;
+    private int mMaxWidth;
+    private int mMaxHeight;
+    private boolean mHasState;
+    private long mLastPublishedLevels = NO_LEVELS;
+
+    /* Stage 3, written on the input thread and read on the UI thread */
+    private volatile long mLevels = NO_LEVELS;
+    private final AtomicBoolean mUiDispatchPending = new AtomicBoolean();
+    private final Runnable mUiDispatch = new Runnable() {
+        @Override
+        public void run() {
+            mUiDispatchPending.set(false);
+            long levels = mLevels;
+            if (mUiListener == null) return;
+            float left = unpackLeft(levels);
+            if (Float.isNaN(left)) {
+                mUiListener.onBarLevelsChanged(false, 0, 0);
+            } else {
+                mUiListener.onBarLevelsChanged(true, left, unpackRight(levels));
+            }
+        }
+    };
+
+    private final TouchControllerListener.OnTouchStateChangedListener mTick =
+            new TouchControllerListener.OnTouchStateChangedListener() {
+                @Override
+                public void onTouchStateChanged(TouchControllerListener.TouchState left,
+                                                TouchControllerListener.TouchState right,
+                                                int maxWidth, int maxHeight) {
+                    if (mBuffer.acquire()) {
+                        TouchSnapshotBuffer.Snapshot snapshot = mBuffer.getFront();
+                        mLeftTouch.copyFrom(snapshot.mLeft);
+                        mRightTouch.copyFrom(snapshot.mRight);
+                        mMaxWidth = snapshot.mMaxWidth;
+                        mMaxHeight = snapshot.mMaxHeight;
+                        mHasState = true;
+                        publishLevels();
+                    }
+                    if (!mHasState) return; /* Nothing to sample before the first touch event */
+                    for (int i = 0; i < mProcessingListeners.size(); i++) {
+                        mProcessingListeners.get(i).onTouchStateChanged(mLeftTouch, mRightTouch,
+                                mMaxWidth, mMaxHeight);
+                    }
+                }
+            };
+
+    /**
+     * Call on the UI thread.
+     *
+     * @param rateHz Control ticks per second, see {@link ControlTickScheduler}
+     */
+    public InputPipeline(int rateHz) {
+        mBuffer = new TouchSnapshotBuffer();
+        mLeftTouch = new TouchControllerListener.TouchState();
+        mRightTouch = new TouchControllerListener.TouchState();
+        for (int i = 0; i < SOURCE_COUNT; i++) {
+            mSourceInputs[i] = new SourceInput(i);
+        }
+        mUiHandler = new Handler(Looper.getMainLooper());
+        mThread = new HandlerThread(THREAD_NAME, Process.THREAD_PRIORITY_DISPLAY);
+        mThread.start();
+        mInputHandler = new Handler(mThread.getLooper());
+        mScheduler = new ControlTickScheduler(mInputHandler, rateHz, mTick);
+        /* The scheduler only samples our own copies, which never change identity */
+        mScheduler.onTouchStateChanged(mLeftTouch, mRightTouch, 0, 0);
+    }
+
+    /**
+     * Stage 1. Register the returned listener with the source, e.g.
+     * touchListener.addTouchStateChangedListener(pipeline.getSourceInput(SOURCE_TOUCH)).
+     * <p/>
+     * Updates of an inactive source are dropped, until it gets used (a finger down, a stick
+     * off center) while the active one isn't. Then it takes over, so the driver can just pick
+     * up the other input.
+     *
+     * @param source SOURCE_TOUCH, SOURCE_GAMEPAD or SOURCE_TILT
+     */
+    public TouchControllerListener.OnTouchStateChangedListener getSourceInput(int source) {
+        return mSourceInputs[source];
+    }
+
+    /**
+     * Switch sources on the UI thread. The car is stopped, the new source has to be used
+     * before it moves again.
+     */
+    public void setActiveSource(int source) {
+        if (source == mActiveSource) return;
+        mActiveSource = source;
+        mActiveSourceInUse = false;
+        mBuffer.publish(mReleasedTouch, mReleasedTouch, 0, 0); /* Sizes don't matter for a stop */
+    }
+
+    public int getActiveSource() {
+        return mActiveSource;
+    }
+
+    /**
+     * Stage 2. Called on the input thread once per control tick. Add them before start().
+     */
+    public void addProcessingListener(TouchControllerListener.OnTouchStateChangedListener listener) {
+        mProcessingListeners.add(listener);
+    }
+
+    /**
+     * Stage 3. Called on the UI thread.
+     */
+    public void setUiListener(UiListener listener) {
+        mUiListener = listener;
+    }
+
+    public void start() {
+        mInputHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mScheduler.start();
+            }
+        });
+    }
+
+    /**
+     * Stop ticking and end the input thread. The pipeline can't be restarted.
+     */
+    public void quit() {
+        mUiHandler.removeCallbacks(mUiDispatch);
+        mInputHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mScheduler.stop();
+                /* quitSafely() needs API 18, nothing else is queued after this anyway */
+                mThread.quit();
+            }
+        });
+    }
+
+
+    private void publishLevels() {
+        long levels = NO_LEVELS;
+        if (mLeftTouch.isValid() && mRightTouch.isValid()) {
+            levels = pack((mLeftTouch.mStartPoint.y - mLeftTouch.mCurrentPoint.y) / (float) mMaxHeight,
+                    (mRightTouch.mStartPoint.y - mRightTouch.mCurrentPoint.y) / (float) mMaxHeight);
+        }
+        if (levels == mLastPublishedLevels) return;
+        mLastPublishedLevels = levels;
+        mLevels = levels;
+        if (mUiDispatchPending.compareAndSet(false, true)) mUiHandler.post(mUiDispatch);
+    }
+
+    private static long pack(float left, float right) {
+        return ((long) Float.floatToRawIntBits(left) << 32)
+                | (Float.floatToRawIntBits(right) & 0xFFFFFFFFL);
+    }
+
+    private static float unpackLeft(long levels) {
+        return Float.intBitsToFloat((int) (levels >>> 32));
+    }
+
+    private static float unpackRight(long levels) {
+        return Float.intBitsToFloat((int) levels);
+    }
+
+    /**
+     * Stage 1 entry of one source, on the UI thread.
+     */
+    private class SourceInput implements TouchControllerListener.OnTouchStateChangedListener {
+        private final int mSource;
+
+        SourceInput(int source) {
+            mSource = source;
+        }
+
+        @Override
+        public void onTouchStateChanged(TouchControllerListener.TouchState left,
+                                        TouchControllerListener.TouchState right,
+                                        int maxWidth, int maxHeight) {
+            boolean inUse = left.isValid() || right.isValid();
+            if (mSource != mActiveSource) {
+                if (!inUse || mActiveSourceInUse) return;
+                mActiveSource = mSource; /* Take over an idle source */
+            }
+            mActiveSourceInUse = inUse;
+            mBuffer.publish(left, right, maxWidth, maxHeight);
+        }
+    }
+
+    public interface UiListener {
+        /**
+         * @param active false while less than two fingers are down, the levels are 0 then
+         * @param left   Left finger's travel as a fraction of the view height (negative backwards)
+         * @param right  Same for the right finger
+         */
+        void onBarLevelsChanged(boolean active, float left, float right);
+    }
+}
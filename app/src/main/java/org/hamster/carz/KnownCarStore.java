@@ -0,0 +1,68 @@
+package org.hamster.carz;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * Remembers the cars we connected to recently and the RFCOMM channel each one was reached on,
+ * so we can reconnect without the device picker and without an SDP lookup.
+ */
+public class KnownCarStore {
+    private static final String PREFS_NAME = "known_cars";
+    private static final String KEY_RECENT = "recent"; /* Addresses, most recent first */
+    private static final String KEY_CHANNEL_PREFIX = "channel_";
+    private static final int MAX_RECENT = 3;
+    private static final String SEPARATOR = ",";
+
+    private final SharedPreferences mPrefs;
+
+    KnownCarStore(Context context) {
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Mark address as the most recently used car.
+     *
+     * @param channel RFCOMM channel it was reached on. -1 if unknown
+     */
+    public void remember(String address, int channel) {
+        StringBuilder recent = new StringBuilder(address);
+        int count = 1;
+        for (String known : getRecentAddresses()) {
+            if (count >= MAX_RECENT) break;
+            if (known.equals(address)) continue;
+            recent.append(SEPARATOR).append(known);
+            count++;
+        }
+        SharedPreferences.Editor editor = mPrefs.edit().putString(KEY_RECENT, recent.toString());
+        if (channel > 0)
+            editor.putInt(KEY_CHANNEL_PREFIX + address, channel);
+        else
+            editor.remove(KEY_CHANNEL_PREFIX + address);
+        editor.apply();
+    }
+
+    /**
+     * @return most recent first. Empty if none
+     */
+    public String[] getRecentAddresses() {
+        String recent = mPrefs.getString(KEY_RECENT, "");
+        if (recent.isEmpty()) return new String[0];
+        return recent.split(SEPARATOR);
+    }
+
+    /**
+     * @return null if we never connected to a car
+     */
+    public String getLastAddress() {
+        String[] recent = getRecentAddresses();
+        return recent.length == 0 ? null : recent[0];
+    }
+
+    /**
+     * @return cached RFCOMM channel, -1 if unknown
+     */
+    public int getChannel(String address) {
+        return mPrefs.getInt(KEY_CHANNEL_PREFIX + address, -1);
+    }
+}
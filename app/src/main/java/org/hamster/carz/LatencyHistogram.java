@@ -0,0 +1,95 @@
+package org.hamster.carz;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Fixed-memory latency histogram in milliseconds, for input-to-wire latency.
+ * <p/>
+ * Buckets are 1ms wide below 64ms, then every power of 2 is split into 32 buckets, so the
+ * relative error stays around 3% up to MAX_TRACKABLE_MS. Larger values land in the last
+ * bucket, but getMax() still reports them exactly.
+ * <p/>
+ * One thread records (the writer thread), any thread may read. Recording is a couple of
+ * array accesses, nothing is allocated or locked.
+ */
+public class LatencyHistogram {
+    /**
+     * Sub-buckets per power of 2. The linear range below 2 * SUB_BUCKETS is exact.
+     */
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int LINEAR_LIMIT = 2 * SUB_BUCKETS;
+    public static final long MAX_TRACKABLE_MS = 65535;
+    private static final int BUCKET_COUNT = bucketIndex(MAX_TRACKABLE_MS) + 1;
+
+    private final AtomicIntegerArray mCounts = new AtomicIntegerArray(BUCKET_COUNT);
+    private volatile long mTotalCount;
+    private volatile long mMax;
+
+    /**
+     * Single writer only.
+     *
+     * @param latencyMs negative values are counted as 0
+     */
+    public void record(long latencyMs) {
+        if (latencyMs < 0) latencyMs = 0;
+        int index = bucketIndex(Math.min(latencyMs, MAX_TRACKABLE_MS));
+        /* Single writer, so get + lazySet is enough and much cheaper than incrementAndGet */
+        mCounts.lazySet(index, mCounts.get(index) + 1);
+        if (latencyMs > mMax) mMax = latencyMs;
+        mTotalCount = mTotalCount + 1;
+    }
+
+    public long getCount() {
+        return mTotalCount;
+    }
+
+    public long getMax() {
+        return mMax;
+    }
+
+    /**
+     * @param percentile 0~100, e.g. 99 for p99
+     * @return upper bound (in ms) of the bucket holding that percentile. 0 if empty
+     */
+    public long getValueAtPercentile(double percentile) {
+        long total = mTotalCount;
+        if (total == 0) return 0;
+        long target = (long) Math.ceil(total * percentile / 100);
+        if (target < 1) target = 1;
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += mCounts.get(i);
+            if (seen >= target) {
+                /* The last bucket also holds everything beyond MAX_TRACKABLE_MS */
+                if (i == BUCKET_COUNT - 1) return mMax;
+                return Math.min(bucketUpperBound(i), mMax);
+            }
+        }
+        return mMax;
+    }
+
+    /**
+     * Forget everything. Don't call while another thread is recording.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            mCounts.set(i, 0);
+        }
+        mTotalCount = 0;
+        mMax = 0;
+    }
+
+    private static int bucketIndex(long value) {
+        if (value < LINEAR_LIMIT) return (int) value;
+        int shift = (63 - Long.numberOfLeadingZeros(value)) - SUB_BUCKET_BITS;
+        return LINEAR_LIMIT + (shift - 1) * SUB_BUCKETS + (int) ((value >> shift) - SUB_BUCKETS);
+    }
+
+    private static long bucketUpperBound(int index) {
+        if (index < LINEAR_LIMIT) return index;
+        int shift = (index - LINEAR_LIMIT) / SUB_BUCKETS + 1;
+        long subBucket = (index - LINEAR_LIMIT) % SUB_BUCKETS + SUB_BUCKETS;
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
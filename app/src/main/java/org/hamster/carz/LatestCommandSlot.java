@@ -0,0 +1,112 @@
+package org.hamster.carz;
+
+/**
+ * Single-slot mailbox between command producers (UI thread) and the writer thread of a
+ * {@link BluetoothCarConnection}.
+ * <p/>
+ * Only the latest command is kept. If the writer hasn't picked up the previous command yet,
+ * it will be overwritten, since a stale motor speed is useless once a newer one exists.
+ * The data is copied into a preallocated buffer, so callers may reuse their arrays.
+ */
+class LatestCommandSlot {
+    /**
+     * Large enough for every frame we send (binary and debug ones).
+     */
+    static final int MAX_COMMAND_LENGTH = 64;
+
+    private final byte[] mBuffer = new byte[MAX_COMMAND_LENGTH];
+    private int mLength;
+    private long mEventTime;
+    /**
+     * Event time of the command returned by the last take(). Only used by the writer thread.
+     */
+    private long mTakenEventTime;
+    private boolean mPending;
+    private boolean mClosed = true; // Opened by reset() once connected
+    /**
+     * How many commands were overwritten before the writer could send them.
+     */
+    private int mOverwrittenCount;
+
+    /**
+     * Put a command into the slot, replacing the pending one (if any). Never blocks on I/O.
+     *
+     * @param eventTime uptimeMillis of the input event that caused this command, 0 if none
+     * @return false if the slot is closed or the command is too long
+     */
+    synchronized boolean put(byte[] data, int offset, int length, long eventTime) {
+        if (mClosed || length > MAX_COMMAND_LENGTH) return false;
+        if (mPending) mOverwrittenCount++;
+        System.arraycopy(data, offset, mBuffer, 0, length);
+        mLength = length;
+        mEventTime = eventTime;
+        mPending = true;
+        notify();
+        return true;
+    }
+
+    /**
+     * Wait for a command and copy it to dest.
+     *
+     * @param dest at least MAX_COMMAND_LENGTH long
+     * @return length of the command, or -1 if the slot is closed
+     */
+    synchronized int take(byte[] dest) throws InterruptedException {
+        while (!mPending && !mClosed) {
+            wait();
+        }
+        if (mClosed) return -1;
+        System.arraycopy(mBuffer, 0, dest, 0, mLength);
+        mTakenEventTime = mEventTime;
+        mPending = false;
+        return mLength;
+    }
+
+    /**
+     * Same as {@link #take(byte[])}, but gives up after timeoutMs.
+     *
+     * @return length of the command, 0 if none came in time, or -1 if the slot is closed
+     */
+    synchronized int take(byte[] dest, long timeoutMs) throws InterruptedException {
+        long deadline = System.nanoTime() + timeoutMs * 1000000;
+        while (!mPending && !mClosed) {
+            long remainingMs = (deadline - System.nanoTime()) / 1000000;
+            if (remainingMs <= 0) return 0;
+            wait(remainingMs);
+        }
+        return take(dest);
+    }
+
+    /**
+     * @return event time passed to put() for the command returned by the last take()
+     */
+    synchronized long getTakenEventTime() {
+        return mTakenEventTime;
+    }
+
+    /**
+     * Wake up the writer and make it quit. Pending command is dropped.
+     */
+    synchronized void close() {
+        mClosed = true;
+        mPending = false;
+        notifyAll();
+    }
+
+    /**
+     * Make the slot usable again (on every new connection).
+     */
+    synchronized void reset() {
+        mClosed = false;
+        mPending = false;
+        mLength = 0;
+    }
+
+    synchronized boolean isClosed() {
+        return mClosed;
+    }
+
+    synchronized int getOverwrittenCount() {
+        return mOverwrittenCount;
+    }
+}
@@ -0,0 +1,169 @@
+package org.hamster.carz;
+
+/**
+ * Link health from periodic pings: round trip time, jitter, loss and when we last heard from
+ * the car at all.
+ * <p/>
+ * The writer thread reports every ping it sends, the detection thread every echo and every
+ * read. The last WINDOW_SIZE pings are kept in fixed rings: send time, whether the echo came
+ * and the round trip time. Statistics are computed over that window when asked for, so they
+ * follow the link within a few seconds. Nothing is allocated after construction.
+ * <p/>
+ * Jitter is the mean difference between consecutive round trip times. A ping counts as lost
+ * once it's older than LOSS_TIMEOUT_MS without an echo; younger ones don't count yet.
+ */
+public class LinkQualityMonitor {
+    public static final int WINDOW_SIZE = 32;
+    public static final long LOSS_TIMEOUT_MS = 1000;
+    private static final long NANOS_PER_MS = 1000000;
+
+    /* Rings indexed by ping id % WINDOW_SIZE, guarded by this */
+    private final int[] mIds = new int[WINDOW_SIZE];
+    private final long[] mSendTimes = new long[WINDOW_SIZE];
+    private final long[] mRtts = new long[WINDOW_SIZE]; /* -1 while unanswered */
+    private int mSentCount;
+
+    private volatile long mLastHeardNanos;
+    private volatile long mLastRttNanos = -1;
+
+    /**
+     * Forget everything, on every new connection.
+     */
+    public synchronized void reset() {
+        mSentCount = 0;
+        mLastRttNanos = -1;
+        mLastHeardNanos = 0;
+    }
+
+    /**
+     * Writer thread, right before a ping goes out.
+     *
+     * @return id to put into the ping
+     */
+    public synchronized int onPingSent(long nowNanos) {
+        int id = mSentCount++;
+        int slot = id % WINDOW_SIZE;
+        mIds[slot] = id;
+        mSendTimes[slot] = nowNanos;
+        mRtts[slot] = -1;
+        return id;
+    }
+
+    /**
+     * Detection thread, for every echo.
+     *
+     * @param id As sent, possibly truncated to 16 bits by the protocol
+     */
+    public synchronized void onEchoReceived(int id, long nowNanos) {
+        int slot = id % WINDOW_SIZE;
+        /* Too old (overwritten already), a duplicate, or garbage */
+        if ((mIds[slot] & 0xFFFF) != (id & 0xFFFF) || mRtts[slot] >= 0 || mSentCount == 0) return;
+        long rtt = nowNanos - mSendTimes[slot];
+        mRtts[slot] = rtt;
+        mLastRttNanos = rtt;
+    }
+
+    /**
+     * Detection thread, whenever anything arrived from the car.
+     */
+    public void onDataReceived(long nowNanos) {
+        mLastHeardNanos = nowNanos;
+    }
+
+    /**
+     * @return System.nanoTime() when the car last sent anything, 0 if never
+     */
+    public long getLastHeardNanos() {
+        return mLastHeardNanos;
+    }
+
+    /**
+     * @return ms since the car last sent anything, -1 if never
+     */
+    public long getMillisSinceLastHeard() {
+        long lastHeard = mLastHeardNanos;
+        return lastHeard == 0 ? -1 : (System.nanoTime() - lastHeard) / NANOS_PER_MS;
+    }
+
+    /**
+     * @return round trip time of the latest echo in microseconds, -1 if none yet
+     */
+    public long getLastRttMicros() {
+        long rtt = mLastRttNanos;
+        return rtt < 0 ? -1 : rtt / 1000;
+    }
+
+    /**
+     * @return mean round trip time over the window in microseconds, -1 if no echo in it
+     */
+    public synchronized long getMeanRttMicros() {
+        long sum = 0;
+        int count = 0;
+        for (int i = 0; i < windowLength(); i++) {
+            long rtt = mRtts[slotOfAge(i)];
+            if (rtt < 0) continue;
+            sum += rtt;
+            count++;
+        }
+        return count == 0 ? -1 : sum / count / 1000;
+    }
+
+    /**
+     * @return mean difference between consecutive round trip times in microseconds (oldest
+     * to newest, lost pings skipped), -1 if less than two echoes in the window
+     */
+    public synchronized long getJitterMicros() {
+        long sum = 0;
+        int count = 0;
+        long previous = -1;
+        for (int i = windowLength() - 1; i >= 0; i--) {
+            long rtt = mRtts[slotOfAge(i)];
+            if (rtt < 0) continue;
+            if (previous >= 0) {
+                sum += Math.abs(rtt - previous);
+                count++;
+            }
+            previous = rtt;
+        }
+        return count == 0 ? -1 : sum / count / 1000;
+    }
+
+    /**
+     * @return lost pings in percent of the decided ones (answered or timed out) in the window,
+     * 0 if none is decided yet
+     */
+    public synchronized int getLossPercent() {
+        long timeoutNanos = LOSS_TIMEOUT_MS * NANOS_PER_MS;
+        long now = System.nanoTime();
+        int decided = 0;
+        int lost = 0;
+        for (int i = 0; i < windowLength(); i++) {
+            int slot = slotOfAge(i);
+            if (mRtts[slot] >= 0) {
+                decided++;
+            } else if (now - mSendTimes[slot] > timeoutNanos) {
+                decided++;
+                lost++;
+            }
+        }
+        return decided == 0 ? 0 : lost * 100 / decided;
+    }
+
+    /**
+     * @return pings sent since the last reset()
+     */
+    public synchronized int getSentCount() {
+        return mSentCount;
+    }
+
+    private int windowLength() {
+        return Math.min(mSentCount, WINDOW_SIZE);
+    }
+
+    /**
+     * @param age 0 for the newest ping
+     */
+    private int slotOfAge(int age) {
+        return (mSentCount - 1 - age) % WINDOW_SIZE;
+    }
+}
@@ -0,0 +1,150 @@
+package org.hamster.carz;
+
+import java.io.IOException;
+
+/**
+ * In-memory transport. Whatever is written to one end can be read from its peer.
+ * <p/>
+ * Meant for measuring the command/telemetry pipeline without any radio: connect a
+ * {@link BluetoothCarConnection} to one end and play the car on {@link #getPeer()}.
+ */
+public class LoopbackTransport implements CarTransport {
+    private static final int DEFAULT_PIPE_SIZE = 4096;
+    private final String mName;
+    private final Pipe mIncoming;
+    private final Pipe mOutgoing;
+    private final LoopbackTransport mPeer;
+
+    public LoopbackTransport() {
+        this("loopback", DEFAULT_PIPE_SIZE);
+    }
+
+    /**
+     * @param name     Used as address, so different loopbacks count as different cars
+     * @param pipeSize Bytes buffered per direction. Writers block when it's full
+     */
+    public LoopbackTransport(String name, int pipeSize) {
+        mName = name;
+        mIncoming = new Pipe(pipeSize);
+        mOutgoing = new Pipe(pipeSize);
+        mPeer = new LoopbackTransport(name + "-peer", mOutgoing, mIncoming, this);
+    }
+
+    private LoopbackTransport(String name, Pipe incoming, Pipe outgoing, LoopbackTransport peer) {
+        mName = name;
+        mIncoming = incoming;
+        mOutgoing = outgoing;
+        mPeer = peer;
+    }
+
+    /**
+     * @return the other end. Reads what this end writes and the other way round.
+     */
+    public LoopbackTransport getPeer() {
+        return mPeer;
+    }
+
+    @Override
+    public void open() throws IOException {
+        /* Always connected. Reopening after close() starts with empty pipes */
+        mIncoming.reopen();
+        mOutgoing.reopen();
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        return mIncoming.read(buffer, offset, length);
+    }
+
+    @Override
+    public void write(byte[] data, int offset, int length) throws IOException {
+        mOutgoing.write(data, offset, length);
+    }
+
+    /**
+     * Closes both directions, so the peer sees end of stream as well.
+     */
+    @Override
+    public void close() throws IOException {
+        mIncoming.close();
+        mOutgoing.close();
+    }
+
+    @Override
+    public String getAddress() {
+        return mName;
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "Loopback " + mName;
+    }
+
+    /**
+     * Bounded blocking byte FIFO, one direction of the loopback.
+     */
+    private static class Pipe {
+        private final byte[] mBuffer;
+        private int mReadPos;
+        private int mCount;
+        private boolean mClosed;
+
+        Pipe(int size) {
+            mBuffer = new byte[size];
+        }
+
+        synchronized int read(byte[] dest, int offset, int length) throws IOException {
+            while (mCount == 0 && !mClosed) {
+                waitInterruptibly();
+            }
+            if (mCount == 0) return -1; /* Closed and drained */
+            int count = Math.min(length, mCount);
+            for (int i = 0; i < count; i++) {
+                dest[offset + i] = mBuffer[(mReadPos + i) % mBuffer.length];
+            }
+            mReadPos = (mReadPos + count) % mBuffer.length;
+            mCount -= count;
+            notifyAll();
+            return count;
+        }
+
+        synchronized void write(byte[] src, int offset, int length) throws IOException {
+            while (length > 0) {
+                while (mCount == mBuffer.length && !mClosed) {
+                    waitInterruptibly();
+                }
+                if (mClosed) throw new IOException("Loopback closed");
+                int writePos = (mReadPos + mCount) % mBuffer.length;
+                int count = Math.min(length, mBuffer.length - mCount);
+                for (int i = 0; i < count; i++) {
+                    mBuffer[(writePos + i) % mBuffer.length] = src[offset + i];
+                }
+                mCount += count;
+                offset += count;
+                length -= count;
+                notifyAll();
+            }
+        }
+
+        synchronized void close() {
+            mClosed = true;
+            notifyAll();
+        }
+
+        synchronized void reopen() {
+            if (!mClosed) return;
+            mClosed = false;
+            mReadPos = 0;
+            mCount = 0;
+        }
+
+        private void waitInterruptibly() throws IOException {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted");
+            }
+        }
+    }
+}
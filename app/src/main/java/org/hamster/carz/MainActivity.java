@@ -47,7 +47,7 @@ public class MainActivity extends AppCompatActivity {
                 @Override
                 public void run() {
                     BluetoothCarConnection.CarConnectionState state = connection.getState();
-                    final BluetoothDevice device = connection.getTargetDevice();
+                    final CarTransport device = connection.getTransport();
 
                     /* We do only snackbars here. Other layout changes will be in separate methods */
                     switch (state) {
@@ -104,6 +104,8 @@ public class MainActivity extends AppCompatActivity {
         public void onServiceConnected(ComponentName name, IBinder service) {
             if (VDBG) Log.d(TAG, "onServiceConnected: +1");
             mService = ((BluetoothService.BluetoothServiceBinder) service).getService();
+            /* Go straight to the car we drove last time. The picker is still there if it fails */
+            mService.connectLastCar(bluetoothStateChangeListener, null);
         }
 
         @Override
@@ -182,8 +184,8 @@ public class MainActivity extends AppCompatActivity {
         unbindService(btServiceConn);
     }
 
-    private String btDevToStr(BluetoothDevice device) {
-        return device.getName() + " @ " + device.getAddress();
+    private String btDevToStr(CarTransport device) {
+        return device.getDisplayName();
     }
 
     /**
@@ -230,7 +232,7 @@ public class MainActivity extends AppCompatActivity {
      * Perform layout/text changes after BT connected.
      * This is not a callback.
      */
-    private void onBluetoothConnected(BluetoothDevice device) {
+    private void onBluetoothConnected(CarTransport device) {
         animateToolbarColor(R.color.colorPrimary, R.color.colorAccent, 500);
         // animateStatusBarColor(R.color.colorPrimaryDark, R.color.colorAccentDark, 500);
         // Because controller fragment doesn't have StatusBar
@@ -240,14 +242,16 @@ public class MainActivity extends AppCompatActivity {
         mFAB.setVisibility(View.GONE);
 
         mMenu.getItem(0).setVisible(true);
-        mToolbar.setTitle(getString(R.string.app_name) + " - " + device.getName());
+        String name = device instanceof RfcommTransport ?
+                ((RfcommTransport) device).getDevice().getName() : device.getDisplayName();
+        mToolbar.setTitle(getString(R.string.app_name) + " - " + name);
         getFragmentManager()
                 .beginTransaction()
                 .replace(R.id.frame_container, new ControllerFragment())
                 .commit();
     }
 
-    private void onBluetoothDisconnected(BluetoothDevice device) {
+    private void onBluetoothDisconnected(CarTransport device) {
         animateToolbarColor(R.color.colorAccent, R.color.colorPrimary, 500);
         // animateStatusBarColor(R.color.colorAccentDark, R.color.colorPrimaryDark, 500);
         // Same as above
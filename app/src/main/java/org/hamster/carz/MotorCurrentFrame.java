@@ -0,0 +1,50 @@
+package org.hamster.carz;
+
+/**
+ * The motor current telemetry frame: 'I' l1 l0 r1 r0
+ * <p/>
+ * Current of the left and right motor in milliamperes, unsigned 16 bit big-endian each.
+ */
+public final class MotorCurrentFrame {
+    public static final int TAG = 'I';
+    public static final int LENGTH = 5;
+    public static final int CHANNEL_LEFT = 0;
+    public static final int CHANNEL_RIGHT = 1;
+    /**
+     * Above the drivers' limit. Higher values are misaligned frames.
+     */
+    public static final int MAX_MILLIAMPERES = 20000;
+
+    static final TelemetryFrameSplitter.FrameValidator VALIDATOR =
+            new TelemetryFrameSplitter.FrameValidator() {
+                @Override
+                public boolean isValid(ByteRingBuffer ring, int length) {
+                    return (ring.peek(1) << 8 | ring.peek(2)) <= MAX_MILLIAMPERES
+                            && (ring.peek(3) << 8 | ring.peek(4)) <= MAX_MILLIAMPERES;
+                }
+            };
+
+    /**
+     * CHANNEL_LEFT and CHANNEL_RIGHT, milliamperes.
+     */
+    public static final TelemetryDecoder DECODER = new TelemetryDecoder() {
+        @Override
+        public int getChannelCount() {
+            return 2;
+        }
+
+        @Override
+        public int getFrameLength() {
+            return LENGTH;
+        }
+
+        @Override
+        public void decode(TelemetryFrameBatch frames, int index, int[] values) {
+            values[CHANNEL_LEFT] = frames.getByte(index, 1) << 8 | frames.getByte(index, 2);
+            values[CHANNEL_RIGHT] = frames.getByte(index, 3) << 8 | frames.getByte(index, 4);
+        }
+    };
+
+    private MotorCurrentFrame() {
+    }
+}
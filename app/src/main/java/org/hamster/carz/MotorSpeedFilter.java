@@ -0,0 +1,151 @@
+package org.hamster.carz;
+
+/**
+ * Smooths the speeds coming out of {@link MotorSpeedMapper} before they are encoded.
+ * <p/>
+ * Per motor, in this order:
+ * <p/>
+ * Low-pass (optional): first order, with time constant lowPassMs.
+ * <p/>
+ * Slew-rate limit: the output moves at most accelPerSecond away from 0 and decelPerSecond
+ * towards 0. The band below MIN_VALUE is skipped (motors stall and heat up there), so the
+ * output is always 0 or MIN_VALUE~MAX_VALUE in magnitude.
+ * <p/>
+ * Quantization: the output moves in steps of outputStep, so a ramp produces a bounded
+ * number of distinct frames. A ramp over the whole range takes at most
+ * (MAX_VALUE - MIN_VALUE) / accelPerSecond seconds.
+ * <p/>
+ * Hysteresis around the dead-band is done by the mapper, on the finger delta where the edge
+ * actually is. Plain Java and allocation-free like the mapper. Driven once per control tick.
+ */
+public class MotorSpeedFilter {
+    public static final int DEFAULT_ACCEL_PER_SECOND = 600;
+    public static final int DEFAULT_DECEL_PER_SECOND = 1200;
+    public static final int DEFAULT_LOW_PASS_MS = 0;
+    public static final int DEFAULT_OUTPUT_STEP = 4;
+    /**
+     * Longer gaps between updates (e.g. after a pause) are treated as this long.
+     */
+    private static final long MAX_STEP_MS = 100;
+
+    private int mAccelPerSecond = DEFAULT_ACCEL_PER_SECOND;
+    private int mDecelPerSecond = DEFAULT_DECEL_PER_SECOND;
+    private int mLowPassMs = DEFAULT_LOW_PASS_MS;
+    private int mOutputStep = DEFAULT_OUTPUT_STEP;
+
+    private final Channel mLeft = new Channel();
+    private final Channel mRight = new Channel();
+    private long mLastUpdateTime;
+
+    /**
+     * @param accelPerSecond Max speed change per second away from 0. 0 for no limit
+     * @param decelPerSecond Max speed change per second towards 0. 0 for no limit
+     */
+    public void setSlewRates(int accelPerSecond, int decelPerSecond) {
+        mAccelPerSecond = accelPerSecond;
+        mDecelPerSecond = decelPerSecond;
+    }
+
+    /**
+     * @param timeConstantMs 0 to disable the low-pass
+     */
+    public void setLowPass(int timeConstantMs) {
+        mLowPassMs = timeConstantMs;
+    }
+
+    /**
+     * @param step 1 to pass every value through
+     */
+    public void setOutputStep(int step) {
+        mOutputStep = Math.max(step, 1);
+    }
+
+    /**
+     * Filter one pair of mapped speeds.
+     *
+     * @param now uptimeMillis of this control tick
+     */
+    public void update(int left, int right, long now) {
+        long dtMs = mLastUpdateTime == 0 ? 0 : Math.min(now - mLastUpdateTime, MAX_STEP_MS);
+        mLastUpdateTime = now;
+        float dt = dtMs / 1000f;
+        mLeft.update(left, dt);
+        mRight.update(right, dt);
+    }
+
+    /**
+     * Stop both motors right away, without ramping. Used when the fingers are lifted.
+     */
+    public void reset() {
+        mLeft.reset();
+        mRight.reset();
+        mLastUpdateTime = 0;
+    }
+
+    public int getLeftSpeed() {
+        return mLeft.mOutput;
+    }
+
+    public int getRightSpeed() {
+        return mRight.mOutput;
+    }
+
+    private class Channel {
+        private float mSmoothed;
+        private float mValue;
+        private int mOutput;
+
+        void update(int target, float dt) {
+            /* The mapper only gives 0 for a side that must stand still. Not ramped, see reset() */
+            if (target == 0) {
+                reset();
+                return;
+            }
+
+            /* Low-pass. dt == 0 on the first update after a reset, take the target then */
+            if (mLowPassMs > 0 && dt > 0) {
+                mSmoothed += (target - mSmoothed) * dt / (mLowPassMs / 1000f + dt);
+            } else {
+                mSmoothed = target;
+            }
+
+            /* Slew limit. Reversing goes through 0, so decelerate first */
+            float goal = mSmoothed;
+            if (goal * mValue < 0) goal = 0;
+            boolean away = Math.abs(goal) > Math.abs(mValue);
+            int rate = away ? mAccelPerSecond : mDecelPerSecond;
+            float diff = goal - mValue;
+            if (rate > 0) {
+                /* On the first tick dt is 0: we may only leave the stall band (below) */
+                float maxStep = rate * dt;
+                if (diff > maxStep) diff = maxStep;
+                else if (diff < -maxStep) diff = -maxStep;
+            }
+            mValue += diff;
+
+            /* Skip the stall band: jump to MIN_VALUE when starting, drop to 0 when stopping */
+            if (Math.abs(mValue) < MotorSpeedMapper.MIN_VALUE) {
+                boolean starting = away && Math.abs(goal) >= MotorSpeedMapper.MIN_VALUE;
+                mValue = starting ? Math.signum(goal) * MotorSpeedMapper.MIN_VALUE : 0;
+            }
+            mOutput = quantize(mValue);
+        }
+
+        void reset() {
+            mSmoothed = 0;
+            mValue = 0;
+            mOutput = 0;
+        }
+
+        private int quantize(float value) {
+            int magnitude = Math.round(Math.abs(value));
+            if (magnitude == 0) return 0;
+            /* Steps counted from MIN_VALUE, MAX_VALUE always reachable */
+            int steps = Math.round((magnitude - MotorSpeedMapper.MIN_VALUE) / (float) mOutputStep);
+            magnitude = Math.min(MotorSpeedMapper.MIN_VALUE + steps * mOutputStep,
+                    MotorSpeedMapper.MAX_VALUE);
+            if (Math.abs(value) >= MotorSpeedMapper.MAX_VALUE) magnitude = MotorSpeedMapper.MAX_VALUE;
+            return value < 0 ? -magnitude : magnitude;
+        }
+    }
+}
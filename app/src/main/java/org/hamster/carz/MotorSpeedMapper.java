@@ -0,0 +1,98 @@
+package org.hamster.carz;
+
+/**
+ * Maps finger movement to motor speeds. See {@link BluetoothCommandSender} for the gestures.
+ * <p/>
+ * Plain Java on purpose (no Android types), so it can be benchmarked on a desktop JVM.
+ * Results are kept in fields instead of a returned object, so mapping allocates nothing.
+ */
+public class MotorSpeedMapper {
+    /**
+     * If abs(deltaX1 - deltaX2) < maxHeight * THRESHOLD, they will be treated the same. The car will go straight.
+     * If deltaX1(X2) < maxHeight * THRESHOLD,
+     */
+    private static final float IGNORE_DELTA_THRESHOLD = 0.1f;
+    /**
+     * A delta that made it past IGNORE_DELTA_THRESHOLD is only ignored again once it drops
+     * below maxHeight * RELEASE_DELTA_THRESHOLD. Without this band a finger wobbling at the
+     * edge flips the speed between MIN_VALUE and about MIN_VALUE + 10 on every sample.
+     */
+    private static final float RELEASE_DELTA_THRESHOLD = 0.06f;
+    /**
+     * Convert maxHeight to this value. 127 is maximum of one signed byte.
+     */
+    public static final int MAX_VALUE = 127;
+    /**
+     * Convert minHeight to this value. Low values will cause motors to stop working (and burning)
+     */
+    public static final int MIN_VALUE = 30;
+
+    private int mLeftSpeed;
+    private int mRightSpeed;
+    /* Past the dead-band, see RELEASE_DELTA_THRESHOLD */
+    private boolean mLeftEngaged;
+    private boolean mRightEngaged;
+
+    /**
+     * Both fingers down. Positions are in view coordinates (y grows downwards).
+     */
+    public void map(int leftStartY, int leftCurrentY, int rightStartY, int rightCurrentY,
+                    int maxHeight) {
+        map(leftStartY, leftCurrentY, rightStartY, rightCurrentY, maxHeight, false, false);
+    }
+
+    /**
+     * Same, but a side can stop (speed 0) inside the dead-band instead of running at
+     * MIN_VALUE like a finger at rest. For sticks and tilt, where neutral means stop. The
+     * dead-band hysteresis applies as usual.
+     */
+    public void map(int leftStartY, int leftCurrentY, int rightStartY, int rightCurrentY,
+                    int maxHeight, boolean leftStopInDeadBand, boolean rightStopInDeadBand) {
+        /* Android's y-axis is different from human's sense */
+        int deltaXL = leftStartY - leftCurrentY;
+        int deltaXR = rightStartY - rightCurrentY;
+        /* Ignore small deltas (caused by finger shaking) */
+        mLeftEngaged = isEngaged(deltaXL, maxHeight, mLeftEngaged);
+        mRightEngaged = isEngaged(deltaXR, maxHeight, mRightEngaged);
+        if (!mLeftEngaged) deltaXL = 0;
+        if (!mRightEngaged) deltaXR = 0;
+        boolean leftStopped = leftStopInDeadBand && !mLeftEngaged;
+        boolean rightStopped = rightStopInDeadBand && !mRightEngaged;
+        /* Ignore close deltas (make it easier to go straight). Not when pivoting on one side */
+        if (!leftStopped && !rightStopped
+                && Math.abs(deltaXL - deltaXR) < maxHeight * IGNORE_DELTA_THRESHOLD)
+            deltaXL = deltaXR = Math.min(deltaXL, deltaXR);
+        /* Convert values */
+        mLeftSpeed = leftStopped ? 0 : convert(deltaXL, maxHeight);
+        mRightSpeed = rightStopped ? 0 : convert(deltaXR, maxHeight);
+    }
+
+    /**
+     * No/One finger is on screen. Stop.
+     */
+    public void mapStop() {
+        mLeftSpeed = 0;
+        mRightSpeed = 0;
+        mLeftEngaged = mRightEngaged = false;
+    }
+
+    public int getLeftSpeed() {
+        return mLeftSpeed;
+    }
+
+    public int getRightSpeed() {
+        return mRightSpeed;
+    }
+
+    private static boolean isEngaged(int delta, int maxHeight, boolean engaged) {
+        float threshold = engaged ? RELEASE_DELTA_THRESHOLD : IGNORE_DELTA_THRESHOLD;
+        return Math.abs(delta) >= maxHeight * threshold;
+    }
+
+    private static int convert(int delta, int maxHeight) {
+        if (delta >= 0)
+            return (int) ((float) delta / maxHeight * (MAX_VALUE - MIN_VALUE) + MIN_VALUE);
+        else
+            return (int) ((float) delta / maxHeight * (MAX_VALUE - MIN_VALUE) - MIN_VALUE);
+    }
+}
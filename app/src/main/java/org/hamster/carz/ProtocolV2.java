@@ -0,0 +1,171 @@
+package org.hamster.carz;
+
+/**
+ * Version 2 of the car protocol: the v1 frames wrapped in an envelope with a sequence
+ * number and a checksum.
+ * <p/>
+ * 0xA5 type seq len payload[len] crc8
+ * <p/>
+ * type is the v1 tag ('M' for motor speeds, 'D' for distance, ...), seq counts frames per
+ * direction (wraps at 256), crc8 (poly 0x07) covers type, seq, len and payload.
+ * <p/>
+ * Handshake: right after connecting we send HELLO [version, max rate we'd like in Hz].
+ * A v2 car answers HELLO_ACK [version, max rate it accepts in Hz]. Old firmware doesn't
+ * answer, then we stay with the legacy 'H' 'S' L R frames.
+ * <p/>
+ * Link check: we send PING [id1, id0] now and then, the car answers PING_ECHO with the same
+ * payload as soon as it can. See {@link LinkQualityMonitor}.
+ * <p/>
+ * Everything here works on caller-supplied buffers, nothing is allocated per frame.
+ */
+public final class ProtocolV2 {
+    public static final int LEGACY_VERSION = 1;
+    public static final int VERSION = 2;
+
+    public static final int SOF = 0xA5;
+    public static final int TYPE_HELLO = 'H';
+    public static final int TYPE_HELLO_ACK = 'h';
+    public static final int TYPE_MOTOR = 'M';
+    public static final int TYPE_PING = 'P';
+    public static final int TYPE_PING_ECHO = 'p';
+    public static final int HEADER_LENGTH = 4; /* SOF type seq len */
+    public static final int MAX_PAYLOAD_LENGTH = 16;
+    public static final int MAX_FRAME_LENGTH = HEADER_LENGTH + MAX_PAYLOAD_LENGTH + 1;
+
+    private static final int OFFSET_TYPE = 1;
+    private static final int OFFSET_SEQ = 2;
+    private static final int OFFSET_LENGTH = 3;
+    private static final int[] CRC8_TABLE = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 0x80) != 0 ? ((crc << 1) ^ 0x07) & 0xFF : (crc << 1) & 0xFF;
+            }
+            CRC8_TABLE[i] = crc;
+        }
+    }
+
+    private ProtocolV2() {
+    }
+
+    /**
+     * Write a frame header into dest. Put the payload at dest[HEADER_LENGTH...], then call
+     * {@link #finish(byte[], int)}.
+     */
+    public static void writeHeader(byte[] dest, int type, int seq, int payloadLength) {
+        dest[0] = (byte) SOF;
+        dest[OFFSET_TYPE] = (byte) type;
+        dest[OFFSET_SEQ] = (byte) seq;
+        dest[OFFSET_LENGTH] = (byte) payloadLength;
+    }
+
+    /**
+     * Append the checksum.
+     *
+     * @return whole frame length
+     */
+    public static int finish(byte[] frame, int payloadLength) {
+        int end = HEADER_LENGTH + payloadLength;
+        frame[end] = (byte) crc8(frame, OFFSET_TYPE, end - OFFSET_TYPE);
+        return end + 1;
+    }
+
+    /**
+     * @return true if frame (of length bytes) is a v2 frame
+     */
+    public static boolean isFrame(byte[] frame, int length) {
+        return length >= HEADER_LENGTH + 1 && (frame[0] & 0xFF) == SOF;
+    }
+
+    /**
+     * Set the sequence number of an encoded frame and fix its checksum. Used by the writer
+     * thread, so sequence numbers follow what actually goes on the wire.
+     */
+    public static void stampSequence(byte[] frame, int length, int seq) {
+        frame[OFFSET_SEQ] = (byte) seq;
+        frame[length - 1] = (byte) crc8(frame, OFFSET_TYPE, length - 1 - OFFSET_TYPE);
+    }
+
+    public static int crc8(byte[] data, int offset, int length) {
+        int crc = 0;
+        for (int i = 0; i < length; i++) {
+            crc = CRC8_TABLE[(crc ^ data[offset + i]) & 0xFF];
+        }
+        return crc;
+    }
+
+    private static int crc8(ByteRingBuffer ring, int offset, int length) {
+        int crc = 0;
+        for (int i = 0; i < length; i++) {
+            crc = CRC8_TABLE[crc ^ ring.peek(offset + i)];
+        }
+        return crc;
+    }
+
+    /**
+     * Receive side. Checks envelopes in the ring and hands the splitter the inner frame
+     * (type followed by payload), so listeners see the same frames as with v1.
+     * Counts checksum failures and sequence gaps. One per connection.
+     */
+    public static class Unwrapper implements TelemetryFrameSplitter.FrameUnwrapper {
+        private volatile int mCrcErrorCount;
+        private volatile int mLostFrameCount;
+        private int mLastSeq = -1;
+
+        @Override
+        public int getHeaderLength() {
+            return HEADER_LENGTH;
+        }
+
+        @Override
+        public int getFrameLength(ByteRingBuffer ring) {
+            int payloadLength = ring.peek(OFFSET_LENGTH);
+            if (payloadLength > MAX_PAYLOAD_LENGTH) return -1;
+            return HEADER_LENGTH + payloadLength + 1;
+        }
+
+        @Override
+        public boolean isValid(ByteRingBuffer ring, int length) {
+            int crc = crc8(ring, OFFSET_TYPE, length - 1 - OFFSET_TYPE);
+            if (crc != ring.peek(length - 1)) {
+                mCrcErrorCount++;
+                return false;
+            }
+            return true;
+        }
+
+        @Override
+        public void unwrap(ByteRingBuffer ring, int length, TelemetryFrameBatch batch) {
+            int seq = ring.peek(OFFSET_SEQ);
+            if (mLastSeq >= 0) {
+                mLostFrameCount += (seq - mLastSeq - 1) & 0xFF;
+            }
+            mLastSeq = seq;
+            batch.addUnwrapped(ring, OFFSET_TYPE, HEADER_LENGTH, length - HEADER_LENGTH - 1);
+        }
+
+        @Override
+        public int getUnwrappedLength(int length) {
+            return length - HEADER_LENGTH; /* type + payload */
+        }
+
+        public void reset() {
+            mCrcErrorCount = 0;
+            mLostFrameCount = 0;
+            mLastSeq = -1;
+        }
+
+        public int getCrcErrorCount() {
+            return mCrcErrorCount;
+        }
+
+        /**
+         * @return frames missing between the sequence numbers we did receive
+         */
+        public int getLostFrameCount() {
+            return mLostFrameCount;
+        }
+    }
+}
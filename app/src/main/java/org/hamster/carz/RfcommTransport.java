@@ -0,0 +1,145 @@
+package org.hamster.carz;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothSocket;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.UUID;
+
+/**
+ * Bluetooth SPP (RFCOMM) transport. This is what the cars speak natively.
+ * <p/>
+ * Resolving the SPP service goes through an SDP query, which dominates connect time to a
+ * known car. If we know the channel from last time, we connect to it directly (hidden
+ * BluetoothDevice.createRfcommSocket(int)) and only fall back to SDP if that fails.
+ */
+public class RfcommTransport implements CarTransport {
+    private static final String TAG = "Carz_Rfcomm";
+    private static final UUID SPP_UUID = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
+    private final BluetoothDevice mDevice;
+    private volatile BluetoothSocket mSocket;
+    private volatile boolean mClosed;
+    private InputStream mInputStream;
+    private OutputStream mOutputStream;
+    /**
+     * Known channel, -1 if we have to ask SDP.
+     */
+    private int mChannel;
+
+    public RfcommTransport(@NonNull BluetoothDevice device) {
+        this(device, -1);
+    }
+
+    /**
+     * @param cachedChannel RFCOMM channel the car was found on before, -1 if unknown
+     */
+    public RfcommTransport(@NonNull BluetoothDevice device, int cachedChannel) {
+        mDevice = device;
+        mChannel = cachedChannel;
+    }
+
+    public BluetoothDevice getDevice() {
+        return mDevice;
+    }
+
+    /**
+     * @return channel of the current (or last) connection, -1 if unknown
+     */
+    public int getChannel() {
+        return mChannel;
+    }
+
+    @Override
+    public void open() throws IOException {
+        mClosed = false;
+        if (mChannel > 0) {
+            try {
+                connect(createSocketOnChannel(mChannel));
+                return;
+            } catch (IOException e) {
+                if (mClosed) throw e; // Cancelled, don't try SDP either
+                Log.i(TAG, "open: cached channel " + mChannel + " failed, falling back to SDP", e);
+                mChannel = -1;
+            }
+        }
+        connect(mDevice.createRfcommSocketToServiceRecord(SPP_UUID));
+        mChannel = resolveChannel(mSocket);
+    }
+
+    private void connect(BluetoothSocket socket) throws IOException {
+        mSocket = socket;
+        if (mClosed) throw new IOException("Closed"); // close() came before we had a socket
+        try {
+            socket.connect();
+        } catch (IOException e) {
+            closeQuietly(socket);
+            throw e;
+        }
+        mOutputStream = socket.getOutputStream();
+        mInputStream = socket.getInputStream();
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        return mInputStream.read(buffer, offset, length);
+    }
+
+    @Override
+    public void write(byte[] data, int offset, int length) throws IOException {
+        mOutputStream.write(data, offset, length);
+    }
+
+    @Override
+    public void close() throws IOException {
+        mClosed = true;
+        BluetoothSocket socket = mSocket;
+        if (socket != null) socket.close();
+    }
+
+    @Override
+    public String getAddress() {
+        return mDevice.getAddress();
+    }
+
+    @Override
+    public String getDisplayName() {
+        return mDevice.getName() + " @ " + mDevice.getAddress();
+    }
+
+    private BluetoothSocket createSocketOnChannel(int channel) throws IOException {
+        try {
+            Method method = mDevice.getClass().getMethod("createRfcommSocket", int.class);
+            return (BluetoothSocket) method.invoke(mDevice, channel);
+        } catch (Exception e) { // Reflection failures, hidden API changed
+            throw new IOException("createRfcommSocket unavailable: " + e);
+        }
+    }
+
+    /**
+     * @return channel SDP gave us, -1 if the platform doesn't let us read it
+     */
+    private static int resolveChannel(BluetoothSocket socket) {
+        try {
+            Field port = BluetoothSocket.class.getDeclaredField("mPort");
+            port.setAccessible(true);
+            return port.getInt(socket);
+        } catch (Exception e) {
+            Log.w(TAG, "resolveChannel: can't read channel", e);
+            return -1;
+        }
+    }
+
+    private static void closeQuietly(BluetoothSocket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // do nothing
+        }
+    }
+}
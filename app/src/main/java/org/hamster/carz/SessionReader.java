@@ -0,0 +1,127 @@
+package org.hamster.carz;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Reads a session written by {@link SessionRecorder}, record by record, over all of its files.
+ * Files already rotated away are simply missing, reading starts at the oldest one left.
+ * <p/>
+ * Not thread safe. getData() is reused by next().
+ */
+public class SessionReader {
+    private final File[] mFiles;
+    private final byte[] mData = new byte[SessionRecorder.MAX_RECORD_LENGTH];
+    private int mFileIndex = -1;
+    private MappedByteBuffer mBuffer;
+    private long mStartWallClockMs;
+    private int mKind;
+    private int mLength;
+    private long mTimeNanos;
+
+    /**
+     * @param directory Passed to the recorder
+     * @param name      Passed to the recorder, see {@link SessionRecorder#getName()}
+     */
+    public SessionReader(File directory, final String name) throws IOException {
+        File[] files = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String fileName) {
+                return fileName.startsWith(name + "-")
+                        && fileName.endsWith(SessionRecorder.FILE_SUFFIX)
+                        && fileName.length() == name.length() + 5 + SessionRecorder.FILE_SUFFIX.length();
+            }
+        });
+        if (files == null || files.length == 0) {
+            throw new IOException("No session " + name + " in " + directory);
+        }
+        /* Fixed width file indices, so name order is recording order */
+        Arrays.sort(files);
+        mFiles = files;
+    }
+
+    /**
+     * Move to the next record.
+     *
+     * @return false at the end of the session
+     */
+    public boolean next() throws IOException {
+        while (mBuffer == null || mBuffer.remaining() < SessionRecorder.RECORD_HEADER_LENGTH
+                || mBuffer.get(mBuffer.position()) == 0) {
+            if (!openNextFile()) return false;
+        }
+        mKind = mBuffer.get() & 0xFF;
+        mLength = mBuffer.get() & 0xFF;
+        mTimeNanos = mBuffer.getLong();
+        if (mBuffer.remaining() < mLength) throw new IOException("Truncated record in "
+                + mFiles[mFileIndex]);
+        mBuffer.get(mData, 0, mLength);
+        return true;
+    }
+
+    /**
+     * Start over at the first record.
+     */
+    public void rewind() {
+        mFileIndex = -1;
+        mBuffer = null;
+    }
+
+    private boolean openNextFile() throws IOException {
+        mBuffer = null;
+        if (mFileIndex + 1 >= mFiles.length) return false;
+        mFileIndex++;
+        RandomAccessFile file = new RandomAccessFile(mFiles[mFileIndex], "r");
+        try {
+            mBuffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+        } finally {
+            file.close();
+        }
+        byte[] magic = new byte[SessionRecorder.MAGIC.length];
+        if (mBuffer.remaining() < SessionRecorder.FILE_HEADER_LENGTH) {
+            throw new IOException("Not a session file: " + mFiles[mFileIndex]);
+        }
+        mBuffer.get(magic);
+        int version = mBuffer.get() & 0xFF;
+        if (!Arrays.equals(magic, SessionRecorder.MAGIC) || version != SessionRecorder.VERSION) {
+            throw new IOException("Not a session file: " + mFiles[mFileIndex]);
+        }
+        mBuffer.position(SessionRecorder.FILE_HEADER_LENGTH - 8);
+        mStartWallClockMs = mBuffer.getLong();
+        return true;
+    }
+
+    /**
+     * @return SessionRecorder.RECORD_COMMAND or RECORD_TELEMETRY
+     */
+    public int getKind() {
+        return mKind;
+    }
+
+    /**
+     * @return nanoseconds since the session started
+     */
+    public long getTimeNanos() {
+        return mTimeNanos;
+    }
+
+    public byte[] getData() {
+        return mData;
+    }
+
+    public int getLength() {
+        return mLength;
+    }
+
+    /**
+     * @return System.currentTimeMillis() when the session started, once next() was called
+     */
+    public long getStartWallClockMs() {
+        return mStartWallClockMs;
+    }
+}
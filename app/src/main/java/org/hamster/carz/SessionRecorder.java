@@ -0,0 +1,192 @@
+package org.hamster.carz;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Locale;
+
+/**
+ * Records what a car was told and what it answered, so a misbehaving session can be looked at
+ * afterwards and replayed with {@link SessionReplayer}. Opt-in, see
+ * {@link BluetoothCarConnection#setSessionRecorder}.
+ * <p/>
+ * Files are preallocated to fileSize and memory mapped, so a record is a few stores into the
+ * page cache: no system call and no allocation per frame. The kernel writes the pages back on
+ * its own, even if the app crashes. A record that doesn't fit anymore starts the next file
+ * (name-0000.czr, name-0001.czr, ...). Only then are files opened, mapped and, beyond maxFiles,
+ * deleted, on whichever thread recorded.
+ * <p/>
+ * Format (big-endian). File header:
+ * <pre>
+ * "CZRS" version(1) reserved(1) fileIndex(2) sessionStartWallClockMs(8)
+ * </pre>
+ * Then records, until a kind of 0 (the unused, zero-filled rest of the file):
+ * <pre>
+ * kind(1) length(1) timeNanos(8) bytes(length)
+ * </pre>
+ * kind is RECORD_COMMAND (bytes as written to the car) or RECORD_TELEMETRY (one frame as
+ * delivered to DataReceivedListener, tag first). timeNanos counts from the session start and
+ * keeps running across files.
+ * <p/>
+ * Thread safe: the writer thread records commands, the detection thread telemetry.
+ */
+public class SessionRecorder {
+    static final byte[] MAGIC = {'C', 'Z', 'R', 'S'};
+    static final int VERSION = 1;
+    static final int FILE_HEADER_LENGTH = 16;
+    static final int RECORD_HEADER_LENGTH = 10;
+    static final int MAX_RECORD_LENGTH = 255;
+    static final String FILE_SUFFIX = ".czr";
+
+    public static final int RECORD_COMMAND = 'C';
+    public static final int RECORD_TELEMETRY = 'T';
+    public static final int DEFAULT_FILE_SIZE = 1024 * 1024;
+    public static final int DEFAULT_MAX_FILES = 8;
+
+    private final File mDirectory;
+    private final String mName;
+    private final int mFileSize;
+    private final int mMaxFiles;
+    private final long mStartWallClockMs;
+    private final long mStartNanos;
+
+    /* All guarded by this */
+    private MappedByteBuffer mBuffer;
+    private int mFileIndex = -1;
+    private int mRecordCount;
+    private int mDroppedCount;
+    private IOException mError;
+    private boolean mClosed;
+
+    /**
+     * Creates the first file right away.
+     *
+     * @param directory Where the files go, created if needed
+     * @param name      File name prefix, e.g. the car's address without colons
+     * @param fileSize  Bytes per file
+     * @param maxFiles  Older files are deleted when a new one would exceed this
+     */
+    public SessionRecorder(File directory, String name, int fileSize, int maxFiles)
+            throws IOException {
+        if (fileSize < FILE_HEADER_LENGTH + RECORD_HEADER_LENGTH + MAX_RECORD_LENGTH + 1) {
+            throw new IllegalArgumentException("fileSize too small: " + fileSize);
+        }
+        if (maxFiles < 1) throw new IllegalArgumentException("maxFiles must be positive: " + maxFiles);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Can't create " + directory);
+        }
+        mDirectory = directory;
+        mName = name;
+        mFileSize = fileSize;
+        mMaxFiles = maxFiles;
+        mStartWallClockMs = System.currentTimeMillis();
+        mStartNanos = System.nanoTime();
+        synchronized (this) {
+            nextFile();
+        }
+    }
+
+    /**
+     * Record a command as written to the car.
+     */
+    public synchronized void recordCommand(byte[] data, int offset, int length) {
+        record(RECORD_COMMAND, data, offset, length, System.nanoTime() - mStartNanos);
+    }
+
+    /**
+     * Record every frame of the batch. They all get the same time, so a reader can tell
+     * which frames were delivered together.
+     */
+    public synchronized void recordTelemetry(TelemetryFrameBatch frames) {
+        long time = System.nanoTime() - mStartNanos;
+        for (int i = 0; i < frames.getFrameCount(); i++) {
+            record(RECORD_TELEMETRY, frames.getData(), frames.getOffset(i), frames.getLength(i),
+                    time);
+        }
+    }
+
+    private void record(int kind, byte[] data, int offset, int length, long time) {
+        if (mClosed || mBuffer == null || length > MAX_RECORD_LENGTH) {
+            mDroppedCount++;
+            return;
+        }
+        /* Keep one byte for the end marker */
+        if (mBuffer.remaining() < RECORD_HEADER_LENGTH + length + 1) {
+            try {
+                nextFile();
+            } catch (IOException e) {
+                mError = e;
+                mBuffer = null; /* Stop recording, a full disk won't get better */
+                mDroppedCount++;
+                return;
+            }
+        }
+        mBuffer.put((byte) kind).put((byte) length).putLong(time).put(data, offset, length);
+        mRecordCount++;
+    }
+
+    /**
+     * Map the next file. The previous mapping is left to the GC, there is no way to unmap.
+     */
+    private void nextFile() throws IOException {
+        mFileIndex++;
+        if (mFileIndex >= mMaxFiles) {
+            File old = getFile(mDirectory, mName, mFileIndex - mMaxFiles);
+            if (old.exists() && !old.delete()) throw new IOException("Can't delete " + old);
+        }
+        mBuffer = null;
+        RandomAccessFile file = new RandomAccessFile(getFile(mDirectory, mName, mFileIndex), "rw");
+        try {
+            file.setLength(0); /* Zero-fill, a leftover file must not look like records */
+            file.setLength(mFileSize);
+            mBuffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, mFileSize);
+        } finally {
+            file.close(); /* The mapping stays valid */
+        }
+        mBuffer.put(MAGIC).put((byte) VERSION).put((byte) 0).putShort((short) mFileIndex)
+                .putLong(mStartWallClockMs);
+    }
+
+    /**
+     * Stop recording and flush the current file. Recording calls afterwards are dropped.
+     */
+    public synchronized void close() {
+        if (mClosed) return;
+        mClosed = true;
+        if (mBuffer != null) mBuffer.force();
+        mBuffer = null;
+    }
+
+    public synchronized int getRecordCount() {
+        return mRecordCount;
+    }
+
+    /**
+     * @return records lost because they were too long, the recorder was closed or a file
+     * couldn't be created
+     */
+    public synchronized int getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    /**
+     * @return why recording stopped early, null if it didn't
+     */
+    public synchronized IOException getError() {
+        return mError;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public File getDirectory() {
+        return mDirectory;
+    }
+
+    static File getFile(File directory, String name, int index) {
+        return new File(directory, String.format(Locale.US, "%s-%04d%s", name, index, FILE_SUFFIX));
+    }
+}
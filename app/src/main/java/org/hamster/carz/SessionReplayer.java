@@ -0,0 +1,246 @@
+package org.hamster.carz;
+
+import android.os.SystemClock;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Plays a recorded session back: commands go through
+ * {@link BluetoothCarConnection#sendBytes(byte[], int, long)} like live ones (so they meet the
+ * slot, the rate limit and the writer), telemetry goes to a
+ * {@link BluetoothCarConnection.DataReceivedListener} in the batches it originally arrived in.
+ * <p/>
+ * Modes:
+ * ORIGINAL_TIMING keeps the recorded gaps between records.
+ * AS_FAST_AS_POSSIBLE doesn't wait at all, for throughput and regression runs. Note that the
+ * command slot keeps only the newest command, so most commands are overwritten unless the
+ * connection is slower than the replay.
+ * SINGLE_STEP plays one record (or one telemetry batch) per {@link #step()}.
+ * <p/>
+ * play() blocks until the session ends or cancel() is called, so don't call it on the UI
+ * thread. How well the replay kept to the recorded timing is in getLateness() and friends.
+ */
+public class SessionReplayer {
+    private static final String TAG = "Carz_Replay";
+    /**
+     * parkNanos() tends to oversleep by a scheduler tick, so it wakes up this early and spins.
+     */
+    private static final long SPIN_NANOS = 200000;
+    private static final int MAX_FRAMES_PER_BATCH = 64;
+    private static final int BATCH_BUFFER_SIZE = 1024;
+
+    public enum Mode {
+        ORIGINAL_TIMING,
+        AS_FAST_AS_POSSIBLE,
+        SINGLE_STEP
+    }
+
+    private final SessionReader mReader;
+    private final BluetoothCarConnection mConnection;
+    private final BluetoothCarConnection.DataReceivedListener mListener;
+    private final TelemetryFrameBatch mBatch =
+            new TelemetryFrameBatch(MAX_FRAMES_PER_BATCH, BATCH_BUFFER_SIZE);
+    private final Semaphore mSteps = new Semaphore(0);
+    private volatile boolean mCancelled;
+    /**
+     * A record read ahead while collecting a batch, not played yet.
+     */
+    private boolean mHasPending;
+
+    /* Timing report, written by the playing thread */
+    private final LatencyHistogram mLateness = new LatencyHistogram();
+    private volatile long mMaxLatenessNanos;
+    private volatile long mTotalLatenessNanos;
+    private volatile int mPlayedCount;
+    private volatile long mRecordedDurationNanos;
+    private volatile long mReplayDurationNanos;
+
+    /**
+     * @param connection Commands are sent here, null to skip them
+     * @param listener   Telemetry is delivered here, null to skip it
+     */
+    public SessionReplayer(SessionReader reader, @Nullable BluetoothCarConnection connection,
+                           @Nullable BluetoothCarConnection.DataReceivedListener listener) {
+        mReader = reader;
+        mConnection = connection;
+        mListener = listener;
+    }
+
+    /**
+     * Play the whole session from the start. Blocks.
+     *
+     * @return false if cancelled
+     */
+    public boolean play(Mode mode) throws IOException {
+        mReader.rewind();
+        mHasPending = false;
+        mCancelled = false;
+        mSteps.drainPermits();
+        resetReport();
+
+        long firstRecordTime = -1;
+        long replayStart = 0;
+        while (!mCancelled) {
+            if (!mHasPending && !mReader.next()) break;
+            mHasPending = true;
+            long recordTime = mReader.getTimeNanos();
+            if (firstRecordTime < 0) {
+                firstRecordTime = recordTime;
+                replayStart = System.nanoTime();
+            }
+            long due = replayStart + recordTime - firstRecordTime;
+            switch (mode) {
+                case ORIGINAL_TIMING:
+                    waitUntil(due);
+                    break;
+                case SINGLE_STEP:
+                    try {
+                        mSteps.acquire();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        mCancelled = true;
+                    }
+                    break;
+            }
+            if (mCancelled) break;
+            long now = System.nanoTime();
+            playRecord();
+            if (mode == Mode.ORIGINAL_TIMING) recordLateness(now - due);
+            mRecordedDurationNanos = recordTime - firstRecordTime;
+            mReplayDurationNanos = now - replayStart;
+        }
+        Log.i(TAG, "play: " + mode + " " + getTimingSummary());
+        return !mCancelled;
+    }
+
+    /**
+     * Let a SINGLE_STEP play() go on by one record. Any thread.
+     */
+    public void step() {
+        mSteps.release();
+    }
+
+    /**
+     * Make play() return. Any thread.
+     */
+    public void cancel() {
+        mCancelled = true;
+        mSteps.release();
+    }
+
+    /**
+     * Play the current record. Telemetry records with the same time were one batch, they are
+     * collected and delivered together. Reads ahead by one record then.
+     */
+    private void playRecord() throws IOException {
+        mHasPending = false;
+        if (mReader.getKind() == SessionRecorder.RECORD_COMMAND) {
+            if (mConnection != null) {
+                /* Tag it like live input, so the latency stats cover the replay too */
+                mConnection.sendBytes(mReader.getData(), mReader.getLength(),
+                        SystemClock.uptimeMillis());
+            }
+        } else if (mReader.getKind() == SessionRecorder.RECORD_TELEMETRY) {
+            long batchTime = mReader.getTimeNanos();
+            mBatch.clear();
+            do {
+                if (!mBatch.hasRoomFor(mReader.getLength())) {
+                    mHasPending = true; /* Next batch */
+                    break;
+                }
+                mBatch.add(mReader.getData(), 0, mReader.getLength());
+                mPlayedCount++;
+                if (!mReader.next()) break;
+                mHasPending = mReader.getKind() != SessionRecorder.RECORD_TELEMETRY
+                        || mReader.getTimeNanos() != batchTime;
+            } while (!mHasPending);
+            if (mListener != null) mListener.onDataReceived(mBatch);
+            return;
+        }
+        mPlayedCount++;
+    }
+
+    private void waitUntil(long due) {
+        while (!mCancelled) {
+            long remaining = due - System.nanoTime();
+            if (remaining <= 0) return;
+            if (remaining > SPIN_NANOS) {
+                LockSupport.parkNanos(remaining - SPIN_NANOS);
+            }
+        }
+    }
+
+    private void recordLateness(long latenessNanos) {
+        if (latenessNanos < 0) latenessNanos = 0;
+        mLateness.record(TimeUnit.NANOSECONDS.toMillis(latenessNanos));
+        mTotalLatenessNanos += latenessNanos;
+        if (latenessNanos > mMaxLatenessNanos) mMaxLatenessNanos = latenessNanos;
+    }
+
+    private void resetReport() {
+        mLateness.reset();
+        mMaxLatenessNanos = 0;
+        mTotalLatenessNanos = 0;
+        mPlayedCount = 0;
+        mRecordedDurationNanos = 0;
+        mReplayDurationNanos = 0;
+    }
+
+    /**
+     * @return how late records were played against the recorded timing, in ms.
+     * ORIGINAL_TIMING only
+     */
+    public LatencyHistogram getLateness() {
+        return mLateness;
+    }
+
+    public long getMaxLatenessNanos() {
+        return mMaxLatenessNanos;
+    }
+
+    public long getMeanLatenessNanos() {
+        long count = mLateness.getCount();
+        return count == 0 ? 0 : mTotalLatenessNanos / count;
+    }
+
+    /**
+     * @return records played (every telemetry frame counts)
+     */
+    public int getPlayedCount() {
+        return mPlayedCount;
+    }
+
+    /**
+     * @return time between the first and the last played record, as recorded
+     */
+    public long getRecordedDurationNanos() {
+        return mRecordedDurationNanos;
+    }
+
+    /**
+     * @return the same span as it took to replay. Below getRecordedDurationNanos() when
+     * replaying faster
+     */
+    public long getReplayDurationNanos() {
+        return mReplayDurationNanos;
+    }
+
+    public String getTimingSummary() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(mPlayedCount).append(" records, ")
+                .append(TimeUnit.NANOSECONDS.toMillis(mRecordedDurationNanos)).append("ms recorded, ")
+                .append(TimeUnit.NANOSECONDS.toMillis(mReplayDurationNanos)).append("ms replayed");
+        if (mLateness.getCount() > 0) {
+            builder.append(", late by p50 ").append(mLateness.getValueAtPercentile(50))
+                    .append("ms p99 ").append(mLateness.getValueAtPercentile(99))
+                    .append("ms max ").append(TimeUnit.NANOSECONDS.toMicros(mMaxLatenessNanos))
+                    .append("us");
+        }
+        return builder.toString();
+    }
+}
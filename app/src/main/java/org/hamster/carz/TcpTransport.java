@@ -0,0 +1,62 @@
+package org.hamster.carz;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * Plain TCP transport, for cars behind a WiFi-serial bridge and for test rigs
+ * (e.g. a car simulator on a PC).
+ */
+public class TcpTransport implements CarTransport {
+    private static final int CONNECT_TIMEOUT_MS = 5000;
+    private final String mHost;
+    private final int mPort;
+    private volatile Socket mSocket;
+    private InputStream mInputStream;
+    private OutputStream mOutputStream;
+
+    public TcpTransport(String host, int port) {
+        mHost = host;
+        mPort = port;
+    }
+
+    @Override
+    public void open() throws IOException {
+        Socket socket = new Socket();
+        mSocket = socket;
+        /* Commands are tiny and latency sensitive. Don't let Nagle hold them back */
+        socket.setTcpNoDelay(true);
+        socket.connect(new InetSocketAddress(mHost, mPort), CONNECT_TIMEOUT_MS);
+        mOutputStream = socket.getOutputStream();
+        mInputStream = socket.getInputStream();
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        return mInputStream.read(buffer, offset, length);
+    }
+
+    @Override
+    public void write(byte[] data, int offset, int length) throws IOException {
+        mOutputStream.write(data, offset, length);
+    }
+
+    @Override
+    public void close() throws IOException {
+        Socket socket = mSocket;
+        if (socket != null) socket.close();
+    }
+
+    @Override
+    public String getAddress() {
+        return mHost + ":" + mPort;
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "TCP " + getAddress();
+    }
+}
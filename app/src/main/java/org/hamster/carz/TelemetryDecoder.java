@@ -0,0 +1,25 @@
+package org.hamster.carz;
+
+/**
+ * Turns one telemetry frame into primitive values, see {@link TelemetryRegistry}.
+ * <p/>
+ * Called on the detection thread for every frame of its tag, so it must not allocate.
+ */
+public interface TelemetryDecoder {
+    /**
+     * @return how many values a frame carries, e.g. 2 for left and right motor
+     */
+    int getChannelCount();
+
+    /**
+     * @return minimum frame length (including the tag). Shorter frames are skipped
+     */
+    int getFrameLength();
+
+    /**
+     * @param frames Batch holding the frame
+     * @param index  Index of the frame in frames
+     * @param values Output, getChannelCount() long
+     */
+    void decode(TelemetryFrameBatch frames, int index, int[] values);
+}
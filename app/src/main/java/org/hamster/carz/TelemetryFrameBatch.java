@@ -0,0 +1,109 @@
+package org.hamster.carz;
+
+/**
+ * A batch of complete telemetry frames, delivered to
+ * {@link BluetoothCarConnection.DataReceivedListener} in one call.
+ * <p/>
+ * The batch object and its buffers are reused by the connection. Copy out what you need,
+ * don't keep references after onDataReceived returns.
+ */
+public class TelemetryFrameBatch {
+    private final byte[] mData;
+    private final int[] mOffsets;
+    private final int[] mLengths;
+    private int mFrameCount;
+    private int mDataLength;
+
+    public TelemetryFrameBatch(int maxFrames, int maxBytes) {
+        mData = new byte[maxBytes];
+        mOffsets = new int[maxFrames];
+        mLengths = new int[maxFrames];
+    }
+
+    public int getFrameCount() {
+        return mFrameCount;
+    }
+
+    /**
+     * @return the first byte (frame tag, like 'D') of the index-th frame
+     */
+    public int getTag(int index) {
+        return mData[mOffsets[index]] & 0xFF;
+    }
+
+    public int getLength(int index) {
+        return mLengths[index];
+    }
+
+    /**
+     * @param index    Frame index
+     * @param position Byte position in the frame, 0 is the tag
+     * @return the byte as unsigned (0~255)
+     */
+    public int getByte(int index, int position) {
+        return mData[mOffsets[index] + position] & 0xFF;
+    }
+
+    /**
+     * For bulk access. Frame index starts at getOffset(index) and is getLength(index) long.
+     */
+    public byte[] getData() {
+        return mData;
+    }
+
+    public int getOffset(int index) {
+        return mOffsets[index];
+    }
+
+    /**
+     * @return false if there is no room for a frame of this length
+     */
+    public boolean hasRoomFor(int length) {
+        return mFrameCount < mOffsets.length && mDataLength + length <= mData.length;
+    }
+
+    /**
+     * Append a frame of the given length from the head of ring. The ring is not consumed.
+     * Check {@link #hasRoomFor(int)} first.
+     */
+    void add(ByteRingBuffer ring, int length) {
+        ring.peek(mData, mDataLength, length);
+        mOffsets[mFrameCount] = mDataLength;
+        mLengths[mFrameCount] = length;
+        mFrameCount++;
+        mDataLength += length;
+    }
+
+    /**
+     * Append a frame copied from data, e.g. a recorded one. Check {@link #hasRoomFor(int)} first.
+     */
+    void add(byte[] data, int offset, int length) {
+        System.arraycopy(data, offset, mData, mDataLength, length);
+        mOffsets[mFrameCount] = mDataLength;
+        mLengths[mFrameCount] = length;
+        mFrameCount++;
+        mDataLength += length;
+    }
+
+    /**
+     * Append a frame made of the byte at ring.peek(tagPosition) followed by payloadLength
+     * bytes from ring.peek(payloadPosition). Used to strip protocol envelopes.
+     * Check {@link #hasRoomFor(int)} with payloadLength + 1 first.
+     */
+    void addUnwrapped(ByteRingBuffer ring, int tagPosition, int payloadPosition,
+                      int payloadLength) {
+        mData[mDataLength] = (byte) ring.peek(tagPosition);
+        for (int i = 0; i < payloadLength; i++) {
+            mData[mDataLength + 1 + i] = (byte) ring.peek(payloadPosition + i);
+        }
+        mOffsets[mFrameCount] = mDataLength;
+        mLengths[mFrameCount] = payloadLength + 1;
+        mFrameCount++;
+        mDataLength += payloadLength + 1;
+    }
+
+    public void clear() {
+        mFrameCount = 0;
+        mDataLength = 0;
+    }
+}
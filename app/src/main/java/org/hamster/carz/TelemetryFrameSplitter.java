@@ -0,0 +1,203 @@
+package org.hamster.carz;
+
+/**
+ * Splits the byte stream coming from a car into complete frames.
+ * <p/>
+ * Every frame starts with a one byte tag, and the length of a frame is fixed per tag.
+ * The splitter is a small state machine over the receive ring:
+ * <p/>
+ * HUNT: the head byte is not a known tag. Drop it as garbage.
+ * COLLECT: a known tag is at the head, wait until the whole frame has arrived.
+ * VALIDATE: check the payload with the tag's validator (if any). If it's bad, only the tag
+ * byte is dropped and we hunt again from the next byte, so a misaligned or corrupted stream
+ * resyncs on the next valid header instead of getting stuck.
+ * <p/>
+ * A tag can also be handed to a {@link FrameUnwrapper}, for envelopes whose length is in the
+ * header (protocol v2). The unwrapper checks the envelope and puts only the inner frame into
+ * the batch, so listeners don't care which protocol the car speaks.
+ * <p/>
+ * Counters are written by the detection thread only and may be read from any thread to show
+ * link quality.
+ *
+ * @see DistanceFrame
+ * @see TelemetryRegistry
+ * @see ProtocolV2
+ */
+public class TelemetryFrameSplitter {
+    /**
+     * Frame length per tag. 0 means unknown tag.
+     */
+    private final int[] mFrameLengths = new int[256];
+    private final FrameValidator[] mValidators = new FrameValidator[256];
+    private final FrameUnwrapper[] mUnwrappers = new FrameUnwrapper[256];
+    private volatile int mGoodFrameCount;
+    private volatile int mRejectedFrameCount;
+    private volatile int mGarbageByteCount;
+
+    public TelemetryFrameSplitter() {
+        setFrameFormat(DistanceFrame.TAG, DistanceFrame.LENGTH, DistanceFrame.VALIDATOR);
+        setFrameFormat(BatteryFrame.TAG, BatteryFrame.LENGTH, BatteryFrame.VALIDATOR);
+        setFrameFormat(MotorCurrentFrame.TAG, MotorCurrentFrame.LENGTH, MotorCurrentFrame.VALIDATOR);
+        setFrameFormat(WheelSpeedFrame.TAG, WheelSpeedFrame.LENGTH, WheelSpeedFrame.VALIDATOR);
+    }
+
+    /**
+     * @param tag       First byte of the frame
+     * @param length    Whole frame length, including the tag. 0 to forget this tag
+     * @param validator Can be null, then every frame with this tag is accepted
+     */
+    public void setFrameFormat(int tag, int length, FrameValidator validator) {
+        mFrameLengths[tag & 0xFF] = length;
+        mValidators[tag & 0xFF] = validator;
+    }
+
+    /**
+     * @param tag       First byte of the envelope
+     * @param unwrapper null to forget this tag
+     */
+    public void setFrameUnwrapper(int tag, FrameUnwrapper unwrapper) {
+        mUnwrappers[tag & 0xFF] = unwrapper;
+    }
+
+    /**
+     * Move complete frames from ring to batch. Incomplete frame at the end stays in ring.
+     *
+     * @return true if it stopped because batch is full. Deliver, clear and call again then.
+     */
+    public boolean split(ByteRingBuffer ring, TelemetryFrameBatch batch) {
+        while (ring.available() > 0) {
+            int tag = ring.peek(0);
+            FrameUnwrapper unwrapper = mUnwrappers[tag];
+            if (unwrapper != null) {
+                int result = splitEnvelope(ring, batch, unwrapper);
+                if (result == ENVELOPE_WAIT) return false;
+                if (result == ENVELOPE_BATCH_FULL) return true;
+                continue;
+            }
+            int length = mFrameLengths[tag];
+            if (length == 0) {
+                /* HUNT: not a frame start */
+                ring.skip(1);
+                mGarbageByteCount++;
+                continue;
+            }
+            if (ring.available() < length) {
+                /* COLLECT: wait for the rest of this frame */
+                return false;
+            }
+            FrameValidator validator = mValidators[tag];
+            if (validator != null && !validator.isValid(ring, length)) {
+                /* VALIDATE failed: the tag byte was garbage, resync from the next one */
+                ring.skip(1);
+                mGarbageByteCount++;
+                mRejectedFrameCount++;
+                continue;
+            }
+            if (!batch.hasRoomFor(length)) {
+                return true;
+            }
+            batch.add(ring, length);
+            ring.skip(length);
+            mGoodFrameCount++;
+        }
+        return false;
+    }
+
+    private static final int ENVELOPE_DONE = 0;
+    private static final int ENVELOPE_WAIT = 1;
+    private static final int ENVELOPE_BATCH_FULL = 2;
+
+    /**
+     * Same states as split(), but the length comes from the envelope header.
+     */
+    private int splitEnvelope(ByteRingBuffer ring, TelemetryFrameBatch batch,
+                              FrameUnwrapper unwrapper) {
+        if (ring.available() < unwrapper.getHeaderLength()) return ENVELOPE_WAIT;
+        int length = unwrapper.getFrameLength(ring);
+        if (length < 0) {
+            /* Impossible header, so the start byte was garbage */
+            ring.skip(1);
+            mGarbageByteCount++;
+            return ENVELOPE_DONE;
+        }
+        if (ring.available() < length) return ENVELOPE_WAIT;
+        if (!unwrapper.isValid(ring, length)) {
+            ring.skip(1);
+            mGarbageByteCount++;
+            mRejectedFrameCount++;
+            return ENVELOPE_DONE;
+        }
+        if (!batch.hasRoomFor(unwrapper.getUnwrappedLength(length))) return ENVELOPE_BATCH_FULL;
+        unwrapper.unwrap(ring, length, batch);
+        ring.skip(length);
+        mGoodFrameCount++;
+        return ENVELOPE_DONE;
+    }
+
+    /**
+     * Clear the counters (on every new connection).
+     */
+    public void reset() {
+        mGoodFrameCount = 0;
+        mRejectedFrameCount = 0;
+        mGarbageByteCount = 0;
+    }
+
+    public int getGoodFrameCount() {
+        return mGoodFrameCount;
+    }
+
+    /**
+     * @return frames that had a known tag but failed validation
+     */
+    public int getRejectedFrameCount() {
+        return mRejectedFrameCount;
+    }
+
+    /**
+     * @return bytes dropped while looking for a valid frame
+     */
+    public int getGarbageByteCount() {
+        return mGarbageByteCount;
+    }
+
+    /**
+     * Checks the payload of a complete frame at the head of the ring. Must not allocate.
+     */
+    public interface FrameValidator {
+        /**
+         * @param ring   Frame starts at ring.peek(0)
+         * @param length Frame length, at least this many bytes are available
+         */
+        boolean isValid(ByteRingBuffer ring, int length);
+    }
+
+    /**
+     * Handles frames wrapped in an envelope with its own length and checksum. Called on the
+     * detection thread only. Must not allocate.
+     */
+    public interface FrameUnwrapper {
+        /**
+         * @return bytes needed before {@link #getFrameLength(ByteRingBuffer)} can be called
+         */
+        int getHeaderLength();
+
+        /**
+         * @param ring Envelope starts at ring.peek(0), at least getHeaderLength() bytes
+         * @return whole envelope length, or -1 if the header can't be right
+         */
+        int getFrameLength(ByteRingBuffer ring);
+
+        boolean isValid(ByteRingBuffer ring, int length);
+
+        /**
+         * @return bytes unwrap() will add to the batch for an envelope of this length
+         */
+        int getUnwrappedLength(int length);
+
+        /**
+         * Add the inner frame to batch. The ring is not consumed.
+         */
+        void unwrap(ByteRingBuffer ring, int length, TelemetryFrameBatch batch);
+    }
+}
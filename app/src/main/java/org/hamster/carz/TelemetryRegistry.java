@@ -0,0 +1,105 @@
+package org.hamster.carz;
+
+/**
+ * Decodes telemetry by frame tag and publishes the values.
+ * <p/>
+ * Every tag has a {@link TelemetryDecoder} that yields one or more int channels (a frame class
+ * like {@link BatteryFrame} provides one). Each channel has a {@link TelemetryValue}, for
+ * readers that only want the newest value (like the UI, once per vsync). {@link Subscriber}s
+ * see every single value as it's decoded, e.g. for logging or safety checks.
+ * <p/>
+ * Register decoders before the first dispatch(), from then on dispatching runs on the
+ * detection thread only and neither locks nor allocates. Subscribers may come and go at any
+ * time (copy-on-write).
+ */
+public class TelemetryRegistry {
+    private final Entry[] mEntries = new Entry[256];
+    private volatile Subscriber[] mSubscribers = new Subscriber[0];
+
+    /**
+     * Knows every frame our firmware sends.
+     */
+    public TelemetryRegistry() {
+        register(DistanceFrame.TAG, DistanceFrame.DECODER);
+        register(BatteryFrame.TAG, BatteryFrame.DECODER);
+        register(MotorCurrentFrame.TAG, MotorCurrentFrame.DECODER);
+        register(WheelSpeedFrame.TAG, WheelSpeedFrame.DECODER);
+    }
+
+    /**
+     * Replaces the decoder (and the values) of tag. Don't call while dispatching.
+     */
+    public void register(int tag, TelemetryDecoder decoder) {
+        mEntries[tag & 0xFF] = new Entry(decoder);
+    }
+
+    /**
+     * @return null if no decoder is registered for tag or channel is out of range
+     */
+    public TelemetryValue getValue(int tag, int channel) {
+        Entry entry = mEntries[tag & 0xFF];
+        if (entry == null || channel < 0 || channel >= entry.mValues.length) return null;
+        return entry.mValues[channel];
+    }
+
+    public synchronized void addSubscriber(Subscriber subscriber) {
+        Subscriber[] subscribers = new Subscriber[mSubscribers.length + 1];
+        System.arraycopy(mSubscribers, 0, subscribers, 0, mSubscribers.length);
+        subscribers[mSubscribers.length] = subscriber;
+        mSubscribers = subscribers;
+    }
+
+    public synchronized void removeSubscriber(Subscriber subscriber) {
+        for (int i = 0; i < mSubscribers.length; i++) {
+            if (mSubscribers[i] != subscriber) continue;
+            Subscriber[] subscribers = new Subscriber[mSubscribers.length - 1];
+            System.arraycopy(mSubscribers, 0, subscribers, 0, i);
+            System.arraycopy(mSubscribers, i + 1, subscribers, i, subscribers.length - i);
+            mSubscribers = subscribers;
+            return;
+        }
+    }
+
+    /**
+     * Decode and publish every frame of the batch that has a decoder. Single thread only,
+     * usually from {@link BluetoothCarConnection.DataReceivedListener}.
+     */
+    public void dispatch(TelemetryFrameBatch frames) {
+        Subscriber[] subscribers = mSubscribers;
+        for (int i = 0; i < frames.getFrameCount(); i++) {
+            int tag = frames.getTag(i);
+            Entry entry = mEntries[tag];
+            if (entry == null || frames.getLength(i) < entry.mDecoder.getFrameLength()) continue;
+            entry.mDecoder.decode(frames, i, entry.mDecoded);
+            for (int channel = 0; channel < entry.mValues.length; channel++) {
+                int value = entry.mDecoded[channel];
+                entry.mValues[channel].publish(value);
+                for (Subscriber subscriber : subscribers) {
+                    subscriber.onTelemetry(tag, channel, value);
+                }
+            }
+        }
+    }
+
+    private static class Entry {
+        final TelemetryDecoder mDecoder;
+        final TelemetryValue[] mValues;
+        final int[] mDecoded;
+
+        Entry(TelemetryDecoder decoder) {
+            mDecoder = decoder;
+            mValues = new TelemetryValue[decoder.getChannelCount()];
+            for (int i = 0; i < mValues.length; i++) {
+                mValues[i] = new TelemetryValue();
+            }
+            mDecoded = new int[mValues.length];
+        }
+    }
+
+    public interface Subscriber {
+        /**
+         * Called on the detection thread for every decoded value. Keep it short.
+         */
+        void onTelemetry(int tag, int channel, int value);
+    }
+}
@@ -0,0 +1,44 @@
+package org.hamster.carz;
+
+/**
+ * Lock-free holder of the latest value of one telemetry channel.
+ * <p/>
+ * The value and a version counter are packed into one volatile long, so readers always see a
+ * matching pair without locking. Intended for one writer (the detection thread) and any number
+ * of readers that only care about the newest value, e.g. a Choreographer frame callback.
+ * <p/>
+ * Usage on the reader side:
+ * <pre>
+ * long snapshot = holder.snapshot();
+ * if (TelemetryValue.version(snapshot) != lastVersion) {
+ *     lastVersion = TelemetryValue.version(snapshot);
+ *     show(TelemetryValue.value(snapshot));
+ * }
+ * </pre>
+ */
+public class TelemetryValue {
+    private volatile long mPacked;
+
+    /**
+     * Replace the value. Single writer only.
+     */
+    public void publish(int value) {
+        int nextVersion = version(mPacked) + 1;
+        mPacked = ((long) nextVersion << 32) | (value & 0xFFFFFFFFL);
+    }
+
+    public long snapshot() {
+        return mPacked;
+    }
+
+    /**
+     * @return 0 if nothing was published yet. Increases on every publish.
+     */
+    public static int version(long snapshot) {
+        return (int) (snapshot >>> 32);
+    }
+
+    public static int value(long snapshot) {
+        return (int) snapshot;
+    }
+}
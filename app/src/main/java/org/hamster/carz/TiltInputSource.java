@@ -0,0 +1,255 @@
+package org.hamster.carz;
+
+import android.content.Context;
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.Surface;
+import android.view.WindowManager;
+
+import java.util.ArrayList;
+
+/**
+ * Drives the car by tilting the device, held like a steering wheel: tilt the top edge away to
+ * go forward, towards you to go back, turn it like a wheel to steer. One hand is enough.
+ * <p/>
+ * Uses the game rotation vector (gyroscope and accelerometer fused by the sensor hub) if the
+ * device has one, else the accelerometer alone. Both are reduced to the direction of gravity
+ * in screen coordinates and low-pass filtered with a time constant from the event timestamps.
+ * For the accelerometer, that filter also rejects the hand's linear acceleration. The
+ * orientation at start() is neutral. Fixed cost per event, nothing is allocated.
+ * <p/>
+ * Like {@link GamepadInputSource}, the output is a TouchState pair as {@link TouchControllerListener}
+ * would produce it, with the speeds mixed tank style (throttle +/- steering). Holding the device
+ * at neutral reports no fingers (stop). A side whose mixed speed is inside the mapper's dead-band
+ * stops as well (see {@link TouchControllerListener.TouchState#mStopInDeadBand}), so steering as
+ * much as the throttle pivots on one wheel and a slight backward tilt doesn't creep forward.
+ * Sensors batch their events up to
+ * MAX_REPORT_LATENCY_US on API 19+, so the application processor wakes up about once per control
+ * tick instead of once per sample.
+ * <p/>
+ * Register, start and stop on the UI thread, events are delivered there too.
+ */
+public class TiltInputSource implements SensorEventListener {
+    private static final String TAG = "Carz_Tilt";
+    private static final boolean VDBG = false;
+    /**
+     * 50Hz, the control rate. Sampling faster only costs power.
+     */
+    private static final int SAMPLING_PERIOD_US = 20000;
+    /**
+     * Batch up to one control tick of samples.
+     */
+    private static final int MAX_REPORT_LATENCY_US = 20000;
+    private static final long ACCELEROMETER_TIME_CONSTANT_NS = 100000000;
+    private static final long ROTATION_VECTOR_TIME_CONSTANT_NS = 30000000;
+    /**
+     * Tilt (as sine of the angle) for full speed, about 30 degrees.
+     */
+    private static final float FULL_SCALE = 0.5f;
+    /**
+     * Fraction of FULL_SCALE ignored around neutral.
+     */
+    private static final float DEAD_ZONE = 0.1f;
+    /**
+     * See {@link GamepadInputSource}.
+     */
+    private static final int VIRTUAL_HEIGHT = 10000;
+
+    private final SensorManager mSensorManager;
+    private final WindowManager mWindowManager;
+    private final Sensor mSensor;
+    private final long mTimeConstantNs;
+    private final ArrayList<TouchControllerListener.OnTouchStateChangedListener> mListeners =
+            new ArrayList<>(1);
+    private final TouchControllerListener.TouchState mLeft = new TouchControllerListener.TouchState();
+    private final TouchControllerListener.TouchState mRight = new TouchControllerListener.TouchState();
+    private final float[] mRotationMatrix = new float[9];
+    private int mDisplayRotation;
+    private boolean mRunning;
+    private boolean mActive;
+
+    /* Filter state, gravity direction in screen coordinates (x right, y up) */
+    private long mLastTimestamp;
+    private float mGravityRight;
+    private float mGravityUp;
+    private float mNeutralRight;
+    private float mNeutralUp;
+
+    public TiltInputSource(Context context) {
+        mSensorManager = (SensorManager) context.getSystemService(Context.SENSOR_SERVICE);
+        mWindowManager = (WindowManager) context.getSystemService(Context.WINDOW_SERVICE);
+        Sensor sensor = null;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            sensor = mSensorManager.getDefaultSensor(Sensor.TYPE_GAME_ROTATION_VECTOR);
+        }
+        if (sensor != null) {
+            mTimeConstantNs = ROTATION_VECTOR_TIME_CONSTANT_NS;
+        } else {
+            sensor = mSensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
+            mTimeConstantNs = ACCELEROMETER_TIME_CONSTANT_NS;
+        }
+        mSensor = sensor;
+    }
+
+    public void addTouchStateChangedListener(TouchControllerListener.OnTouchStateChangedListener listener) {
+        mListeners.add(listener);
+    }
+
+    /**
+     * @return false if the device has no usable sensor
+     */
+    public boolean isAvailable() {
+        return mSensor != null;
+    }
+
+    /**
+     * Start listening. The current orientation becomes neutral.
+     *
+     * @return false if the sensor couldn't be registered
+     */
+    public boolean start() {
+        if (mRunning) return true;
+        if (mSensor == null) return false;
+        mDisplayRotation = mWindowManager.getDefaultDisplay().getRotation();
+        mLastTimestamp = 0;
+        boolean registered;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            registered = mSensorManager.registerListener(this, mSensor, SAMPLING_PERIOD_US,
+                    MAX_REPORT_LATENCY_US);
+        } else {
+            registered = mSensorManager.registerListener(this, mSensor, SAMPLING_PERIOD_US);
+        }
+        mRunning = registered;
+        if (VDBG) Log.d(TAG, "start: " + mSensor.getType() + " registered " + registered);
+        return registered;
+    }
+
+    /**
+     * Stop listening, and the car.
+     */
+    public void stop() {
+        if (!mRunning) return;
+        mRunning = false;
+        mSensorManager.unregisterListener(this);
+        release(SystemClock.uptimeMillis());
+    }
+
+    /**
+     * Make the current orientation neutral.
+     */
+    public void recenter() {
+        mNeutralRight = mGravityRight;
+        mNeutralUp = mGravityUp;
+    }
+
+    @Override
+    public void onSensorChanged(SensorEvent event) {
+        if (!mRunning) return;
+        float deviceX, deviceY;
+        if (event.sensor.getType() == Sensor.TYPE_ACCELEROMETER) {
+            deviceX = event.values[0] / SensorManager.GRAVITY_EARTH;
+            deviceY = event.values[1] / SensorManager.GRAVITY_EARTH;
+        } else {
+            /* World z (up) in device coordinates is the last row */
+            SensorManager.getRotationMatrixFromVector(mRotationMatrix, event.values);
+            deviceX = mRotationMatrix[6];
+            deviceY = mRotationMatrix[7];
+        }
+        float right, up;
+        switch (mDisplayRotation) {
+            case Surface.ROTATION_90:
+                right = -deviceY;
+                up = deviceX;
+                break;
+            case Surface.ROTATION_180:
+                right = -deviceX;
+                up = -deviceY;
+                break;
+            case Surface.ROTATION_270:
+                right = deviceY;
+                up = -deviceX;
+                break;
+            default:
+                right = deviceX;
+                up = deviceY;
+                break;
+        }
+
+        if (mLastTimestamp == 0) {
+            mGravityRight = right;
+            mGravityUp = up;
+            recenter();
+        } else {
+            long dt = Math.max(event.timestamp - mLastTimestamp, 0);
+            float alpha = (float) dt / (mTimeConstantNs + dt);
+            mGravityRight += (right - mGravityRight) * alpha;
+            mGravityUp += (up - mGravityUp) * alpha;
+        }
+        mLastTimestamp = event.timestamp;
+
+        /* Top edge away lowers the screen's up axis, turning right lowers its right axis */
+        float throttle = applyDeadZone((mNeutralUp - mGravityUp) / FULL_SCALE);
+        float steering = applyDeadZone((mNeutralRight - mGravityRight) / FULL_SCALE);
+        long now = SystemClock.uptimeMillis();
+        if (throttle == 0 && steering == 0) {
+            release(now);
+            return;
+        }
+        if (!mActive) {
+            mLeft.mStartPoint.set(0, VIRTUAL_HEIGHT);
+            mRight.mStartPoint.set(0, VIRTUAL_HEIGHT);
+            mActive = true;
+        }
+        update(mLeft, clamp(throttle + steering), now);
+        update(mRight, clamp(throttle - steering), now);
+        notifyListeners();
+    }
+
+    @Override
+    public void onAccuracyChanged(Sensor sensor, int accuracy) {
+    }
+
+    /**
+     * Like lifting both fingers. Reported once.
+     */
+    private void release(long now) {
+        if (!mActive) return;
+        mActive = false;
+        mLeft.invalidate();
+        mRight.invalidate();
+        mLeft.mEventTime = mRight.mEventTime = now;
+        notifyListeners();
+    }
+
+    private static void update(TouchControllerListener.TouchState state, float speed, long now) {
+        int y = VIRTUAL_HEIGHT - Math.round(speed * VIRTUAL_HEIGHT);
+        state.mCurrentPoint.set(0, y);
+        /* Already filtered above, the touch sample window isn't needed */
+        state.mFilteredX = 0;
+        state.mFilteredY = y;
+        state.mEventTime = now;
+        state.mStopInDeadBand = true;
+    }
+
+    private void notifyListeners() {
+        for (int i = 0; i < mListeners.size(); i++) {
+            mListeners.get(i).onTouchStateChanged(mLeft, mRight, VIRTUAL_HEIGHT, VIRTUAL_HEIGHT);
+        }
+    }
+
+    private static float applyDeadZone(float value) {
+        float magnitude = Math.abs(value);
+        if (magnitude <= DEAD_ZONE) return 0;
+        magnitude = (magnitude - DEAD_ZONE) / (1 - DEAD_ZONE);
+        return value < 0 ? -magnitude : magnitude;
+    }
+
+    private static float clamp(float value) {
+        return Math.max(-1, Math.min(1, value));
+    }
+}
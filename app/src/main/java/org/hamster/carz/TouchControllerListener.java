@@ -11,6 +11,9 @@ import java.util.ArrayList;
  * Created by Hamster on 2015/12/21.
  * <p/>
  * Listen for touch events on controller.
+ * <p/>
+ * ACTION_MOVE events carry every sample the digitizer produced since the last event as
+ * history. All of them go into a small per-finger window, see {@link TouchState#mFilteredY}.
  */
 public class TouchControllerListener implements View.OnTouchListener {
     private static final String TAG = "Carz_TouchCtrl";
@@ -21,6 +24,7 @@ public class TouchControllerListener implements View.OnTouchListener {
     private ArrayList<OnTouchStateChangedListener> mTouchStateChangedListeners;
     private TouchState mLeftTouch;
     private TouchState mRightTouch;
+    private long mEventTime; /* Of the MotionEvent being handled */
 
     TouchControllerListener() {
         mLeftTouch = new TouchState();
@@ -51,6 +55,7 @@ public class TouchControllerListener implements View.OnTouchListener {
 
         mWidth = v.getWidth();
         mHeight = v.getHeight();
+        mEventTime = event.getEventTime();
 
         switch (action) {
             case MotionEvent.ACTION_UP:
@@ -67,7 +72,16 @@ public class TouchControllerListener implements View.OnTouchListener {
                 break;
             case MotionEvent.ACTION_MOVE:
                 /* i is pointerIndex */
+                int historySize = event.getHistorySize();
                 for (int i = 0; i < event.getPointerCount(); i++) {
+                    TouchState state = findByPointerId(event.getPointerId(i));
+                    if (state != null) {
+                        /* Oldest first, the current position is the newest sample */
+                        for (int h = 0; h < historySize; h++) {
+                            state.addSample(event.getHistoricalX(i, h), event.getHistoricalY(i, h),
+                                    event.getHistoricalEventTime(h));
+                        }
+                    }
                     x = (int) event.getX(i);
                     y = (int) event.getY(i);
                     updateFinger(x, y, event.getPointerId(i));
@@ -95,6 +109,8 @@ public class TouchControllerListener implements View.OnTouchListener {
             }
             mLeftTouch.mStartPoint.set(x, y);
             mLeftTouch.mPointerId = pointerId;
+            mLeftTouch.mEventTime = mEventTime;
+            mLeftTouch.addSample(x, y, mEventTime);
         } else {
             if (mRightTouch.isValid()) {
                 Log.d(TAG, "addFinger: Refusing pointerId " + pointerId + " to enter right area");
@@ -102,15 +118,23 @@ public class TouchControllerListener implements View.OnTouchListener {
             }
             mRightTouch.mStartPoint.set(x, y);
             mRightTouch.mPointerId = pointerId;
+            mRightTouch.mEventTime = mEventTime;
+            mRightTouch.addSample(x, y, mEventTime);
         }
     }
 
-    private void updateFinger(int x, int y, int pointerId) {
-        TouchState state = mLeftTouch.mPointerId == pointerId ? mLeftTouch :
+    private TouchState findByPointerId(int pointerId) {
+        return mLeftTouch.mPointerId == pointerId ? mLeftTouch :
                 mRightTouch.mPointerId == pointerId ? mRightTouch :
                         null;
+    }
+
+    private void updateFinger(int x, int y, int pointerId) {
+        TouchState state = findByPointerId(pointerId);
         if (state != null) {
             state.mCurrentPoint.set(x, y);
+            state.mEventTime = mEventTime;
+            state.addSample(x, y, mEventTime);
         } else {
             /*
             This is normal when ...
@@ -125,11 +149,10 @@ public class TouchControllerListener implements View.OnTouchListener {
     }
 
     private void removeFinger(int pointerId) {
-        TouchState state = mLeftTouch.mPointerId == pointerId ? mLeftTouch :
-                mRightTouch.mPointerId == pointerId ? mRightTouch :
-                        null;
+        TouchState state = findByPointerId(pointerId);
         if (state != null) {
             state.invalidate();
+            state.mEventTime = mEventTime; /* Lifting a finger is an input too (stop) */
         } else {
             if (VDBG)
                 Log.i(TAG, "removeFinger: pointerId " + pointerId + " is not found");
@@ -178,12 +201,48 @@ public class TouchControllerListener implements View.OnTouchListener {
         void onTouchStateChanged(TouchState left, TouchState right, int maxWidth, int maxHeight);
     }
 
-    public class TouchState {
+    public static class TouchState {
+        /**
+         * Samples kept per finger. A 120Hz digitizer fills it in about 65ms.
+         */
+        private static final int WINDOW_SIZE = 8;
+        /**
+         * Samples older than this (relative to the newest) are left out of the fit, so a finger
+         * that paused doesn't drag old motion along.
+         */
+        private static final long WINDOW_MAX_AGE_MS = 100;
+
         public Point mStartPoint;
         public Point mCurrentPoint;
         public int mPointerId; /* Used for multi-touch */
+        /**
+         * MotionEvent.getEventTime() of the last event that changed this state. 0 if none.
+         */
+        public long mEventTime;
+        /**
+         * Set by sources where neutral means stop (gamepad sticks, tilt), unlike a finger at
+         * rest. Inside the dead-band the side then runs at speed 0, whatever the other does.
+         */
+        public boolean mStopInDeadBand;
+        /**
+         * Position from a least-squares line through the recent samples, taken at the newest
+         * sample. Follows steady motion without lag, but averages out digitizer jitter.
+         */
+        public float mFilteredX;
+        public float mFilteredY;
+        /**
+         * Slope of the same line, in pixels per second (y grows downwards).
+         */
+        public float mVelocityX;
+        public float mVelocityY;
+
+        private final float[] mSampleX = new float[WINDOW_SIZE];
+        private final float[] mSampleY = new float[WINDOW_SIZE];
+        private final long[] mSampleTime = new long[WINDOW_SIZE];
+        private int mSampleCount;
+        private int mNewestSample = -1;
 
-        TouchState() {
+        public TouchState() {
             mStartPoint = new Point();
             mCurrentPoint = new Point();
             invalidate();
@@ -193,6 +252,70 @@ public class TouchControllerListener implements View.OnTouchListener {
             mStartPoint.set(-1, -1);
             mCurrentPoint.set(-1, -1);
             mPointerId = -1;
+            mStopInDeadBand = false;
+            mSampleCount = 0;
+            mNewestSample = -1;
+            mFilteredX = mFilteredY = -1;
+            mVelocityX = mVelocityY = 0;
+        }
+
+        /**
+         * Add one digitizer sample and update the filtered position and velocity.
+         * Fixed cost, nothing is allocated.
+         */
+        void addSample(float x, float y, long eventTime) {
+            mNewestSample = (mNewestSample + 1) % WINDOW_SIZE;
+            mSampleX[mNewestSample] = x;
+            mSampleY[mNewestSample] = y;
+            mSampleTime[mNewestSample] = eventTime;
+            if (mSampleCount < WINDOW_SIZE) mSampleCount++;
+
+            /* Mean over the usable samples, time relative to the newest one (in seconds) */
+            int n = 0;
+            float sumT = 0, sumX = 0, sumY = 0;
+            for (int i = 0; i < mSampleCount; i++) {
+                int index = (mNewestSample - i + WINDOW_SIZE) % WINDOW_SIZE;
+                long age = eventTime - mSampleTime[index];
+                if (age > WINDOW_MAX_AGE_MS) break;
+                sumT -= age / 1000f;
+                sumX += mSampleX[index];
+                sumY += mSampleY[index];
+                n++;
+            }
+            float meanT = sumT / n, meanX = sumX / n, meanY = sumY / n;
+            float stt = 0, stx = 0, sty = 0;
+            for (int i = 0; i < n; i++) {
+                int index = (mNewestSample - i + WINDOW_SIZE) % WINDOW_SIZE;
+                float dt = -(eventTime - mSampleTime[index]) / 1000f - meanT;
+                stt += dt * dt;
+                stx += dt * (mSampleX[index] - meanX);
+                sty += dt * (mSampleY[index] - meanY);
+            }
+            if (stt > 0) {
+                mVelocityX = stx / stt;
+                mVelocityY = sty / stt;
+            } else {
+                /* One sample, or all at the same time */
+                mVelocityX = mVelocityY = 0;
+            }
+            /* The line evaluated at t = 0 (the newest sample) */
+            mFilteredX = meanX - mVelocityX * meanT;
+            mFilteredY = meanY - mVelocityY * meanT;
+        }
+
+        /**
+         * Copy everything but the sample window, e.g. to hand the state to another thread.
+         */
+        void copyFrom(TouchState other) {
+            mStartPoint.set(other.mStartPoint.x, other.mStartPoint.y);
+            mCurrentPoint.set(other.mCurrentPoint.x, other.mCurrentPoint.y);
+            mPointerId = other.mPointerId;
+            mEventTime = other.mEventTime;
+            mStopInDeadBand = other.mStopInDeadBand;
+            mFilteredX = other.mFilteredX;
+            mFilteredY = other.mFilteredY;
+            mVelocityX = other.mVelocityX;
+            mVelocityY = other.mVelocityY;
         }
 
         public boolean isValid() {
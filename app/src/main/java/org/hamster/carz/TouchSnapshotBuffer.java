@@ -0,0 +1,67 @@
+package org.hamster.carz;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hands the latest touch state from the UI thread (producer) to the input thread (consumer)
+ * without locks. A triple buffer: the producer fills the back slot and swaps it with the
+ * middle one, the consumer swaps the middle one into the front when it's newer.
+ * <p/>
+ * Neither side ever blocks or waits, and the newest state is never lost (a finger lift
+ * always arrives), but intermediate states the consumer didn't pick up in time are skipped.
+ * That's what the control tick wants anyway. Nothing is allocated after construction.
+ */
+class TouchSnapshotBuffer {
+    private static final int INDEX_MASK = 3;
+    private static final int DIRTY = 4;
+
+    private final Snapshot[] mSlots;
+    /**
+     * Index of the middle slot, plus DIRTY if the producer put something newer there.
+     */
+    private final AtomicInteger mMiddle = new AtomicInteger(1);
+    private int mBack = 0; /* Producer only */
+    private int mFront = 2; /* Consumer only */
+
+    TouchSnapshotBuffer() {
+        mSlots = new Snapshot[]{new Snapshot(), new Snapshot(), new Snapshot()};
+    }
+
+    /**
+     * Producer: copy the state and make it visible to the consumer.
+     */
+    void publish(TouchControllerListener.TouchState left, TouchControllerListener.TouchState right,
+                 int maxWidth, int maxHeight) {
+        Snapshot back = mSlots[mBack];
+        back.mLeft.copyFrom(left);
+        back.mRight.copyFrom(right);
+        back.mMaxWidth = maxWidth;
+        back.mMaxHeight = maxHeight;
+        mBack = mMiddle.getAndSet(mBack | DIRTY) & INDEX_MASK;
+    }
+
+    /**
+     * Consumer: take the newest published state into the front slot.
+     *
+     * @return false if nothing new was published since the last call
+     */
+    boolean acquire() {
+        if ((mMiddle.get() & DIRTY) == 0) return false;
+        mFront = mMiddle.getAndSet(mFront) & INDEX_MASK;
+        return true;
+    }
+
+    /**
+     * Consumer: the state taken by the last successful acquire().
+     */
+    Snapshot getFront() {
+        return mSlots[mFront];
+    }
+
+    static class Snapshot {
+        final TouchControllerListener.TouchState mLeft = new TouchControllerListener.TouchState();
+        final TouchControllerListener.TouchState mRight = new TouchControllerListener.TouchState();
+        int mMaxWidth;
+        int mMaxHeight;
+    }
+}
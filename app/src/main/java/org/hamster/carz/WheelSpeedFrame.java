@@ -0,0 +1,51 @@
+package org.hamster.carz;
+
+/**
+ * The wheel speed telemetry frame: 'W' l1 l0 r1 r0
+ * <p/>
+ * Speed of the left and right wheels in mm/s, signed 16 bit big-endian each (negative is
+ * backwards).
+ */
+public final class WheelSpeedFrame {
+    public static final int TAG = 'W';
+    public static final int LENGTH = 5;
+    public static final int CHANNEL_LEFT = 0;
+    public static final int CHANNEL_RIGHT = 1;
+    /**
+     * Faster than the car can go. Higher values are misaligned frames.
+     */
+    public static final int MAX_MM_PER_SECOND = 5000;
+
+    static final TelemetryFrameSplitter.FrameValidator VALIDATOR =
+            new TelemetryFrameSplitter.FrameValidator() {
+                @Override
+                public boolean isValid(ByteRingBuffer ring, int length) {
+                    return Math.abs((short) (ring.peek(1) << 8 | ring.peek(2))) <= MAX_MM_PER_SECOND
+                            && Math.abs((short) (ring.peek(3) << 8 | ring.peek(4))) <= MAX_MM_PER_SECOND;
+                }
+            };
+
+    /**
+     * CHANNEL_LEFT and CHANNEL_RIGHT, mm/s.
+     */
+    public static final TelemetryDecoder DECODER = new TelemetryDecoder() {
+        @Override
+        public int getChannelCount() {
+            return 2;
+        }
+
+        @Override
+        public int getFrameLength() {
+            return LENGTH;
+        }
+
+        @Override
+        public void decode(TelemetryFrameBatch frames, int index, int[] values) {
+            values[CHANNEL_LEFT] = (short) (frames.getByte(index, 1) << 8 | frames.getByte(index, 2));
+            values[CHANNEL_RIGHT] = (short) (frames.getByte(index, 3) << 8 | frames.getByte(index, 4));
+        }
+    };
+
+    private WheelSpeedFrame() {
+    }
+}
@@ -0,0 +1,113 @@
+package org.hamster.carz;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the code that runs on every finger movement, stage by stage.
+ * <p/>
+ * Each benchmark runs the stages before it too, so the cost of one stage is the difference
+ * to the previous benchmark:
+ * touchUpdate -> mapSpeeds -> encodeBinary/encodeText -> pipeline (encode + writer slot)
+ * <p/>
+ * TouchControllerListener itself can't run here (TouchState uses android.graphics.Point),
+ * so touchUpdate copies the synthetic samples into plain fields the same way onTouch
+ * updates TouchState.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class CommandPipelineBenchmark {
+    private static final int VIEW_HEIGHT = 1080;
+    private static final int STREAM_LENGTH = 1024; /* Power of 2, indexes are masked */
+
+    private final int[] mLeftStream = new int[STREAM_LENGTH];
+    private final int[] mRightStream = new int[STREAM_LENGTH];
+    private int mIndex;
+    private int mLeftStartY;
+    private int mLeftCurrentY;
+    private int mRightStartY;
+    private int mRightCurrentY;
+
+    private MotorSpeedMapper mMapper;
+    private CommandEncoder mBinaryEncoder;
+    private CommandEncoder mTextEncoder;
+    private LatestCommandSlot mSlot;
+
+    @Setup
+    public void setUp() {
+        /* Two fingers pushing forward and back with some wobble, like a real drive */
+        Random random = new Random(42);
+        mLeftStartY = mRightStartY = VIEW_HEIGHT * 3 / 4;
+        for (int i = 0; i < STREAM_LENGTH; i++) {
+            double phase = 2 * Math.PI * i / STREAM_LENGTH;
+            mLeftStream[i] = (int) (mLeftStartY - Math.sin(phase) * VIEW_HEIGHT / 2)
+                    + random.nextInt(9) - 4;
+            mRightStream[i] = (int) (mRightStartY - Math.sin(phase * 2) * VIEW_HEIGHT / 2)
+                    + random.nextInt(9) - 4;
+        }
+        mMapper = new MotorSpeedMapper();
+        mBinaryEncoder = new CommandEncoder(false);
+        mTextEncoder = new CommandEncoder(true);
+        mSlot = new LatestCommandSlot();
+        mSlot.reset();
+    }
+
+    private void nextTouch() {
+        int i = mIndex++ & (STREAM_LENGTH - 1);
+        mLeftCurrentY = mLeftStream[i];
+        mRightCurrentY = mRightStream[i];
+    }
+
+    private void map() {
+        mMapper.map(mLeftStartY, mLeftCurrentY, mRightStartY, mRightCurrentY, VIEW_HEIGHT);
+    }
+
+    @Benchmark
+    public int touchUpdate() {
+        nextTouch();
+        return mLeftCurrentY + mRightCurrentY;
+    }
+
+    @Benchmark
+    public int mapSpeeds() {
+        nextTouch();
+        map();
+        return mMapper.getLeftSpeed() + mMapper.getRightSpeed();
+    }
+
+    @Benchmark
+    public int encodeBinary() {
+        nextTouch();
+        map();
+        mBinaryEncoder.encodeSpeeds(mMapper.getLeftSpeed(), mMapper.getRightSpeed());
+        return mBinaryEncoder.getLength();
+    }
+
+    @Benchmark
+    public int encodeText() {
+        nextTouch();
+        map();
+        mTextEncoder.encodeSpeeds(mMapper.getLeftSpeed(), mMapper.getRightSpeed());
+        return mTextEncoder.getLength();
+    }
+
+    /**
+     * Everything the UI thread does per control tick, up to handing the frame to the writer.
+     */
+    @Benchmark
+    public boolean pipeline() {
+        nextTouch();
+        map();
+        mBinaryEncoder.encodeSpeeds(mMapper.getLeftSpeed(), mMapper.getRightSpeed());
+        return mSlot.put(mBinaryEncoder.getFrame(), 0, mBinaryEncoder.getLength(), 0);
+    }
+}
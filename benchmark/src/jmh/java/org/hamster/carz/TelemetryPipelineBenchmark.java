@@ -0,0 +1,127 @@
+package org.hamster.carz;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the receive path, per chunk of CHUNK_SIZE bytes (what one bulk read returns).
+ * <p/>
+ * splitAndDecode: ring -> splitter -> DistanceFrame -> TelemetryValue, decoding only the
+ * latest distance of a batch.
+ * loopback: the same, with the bytes going through a LoopbackTransport first.
+ * splitAndDispatch: ring -> splitter -> TelemetryRegistry, every frame decoded and published,
+ * like every car in BluetoothService does on its detection thread.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class TelemetryPipelineBenchmark {
+    private static final int STREAM_LENGTH = 4096; /* Multiple of CHUNK_SIZE */
+    private static final int CHUNK_SIZE = 64;
+    /**
+     * One garbage byte per this many frames, so the resync path is measured too.
+     */
+    private static final int GARBAGE_INTERVAL = 50;
+
+    private final byte[] mStream = new byte[STREAM_LENGTH];
+    private int mPosition;
+    private ByteRingBuffer mRing;
+    private TelemetryFrameSplitter mSplitter;
+    private TelemetryFrameBatch mBatch;
+    private TelemetryValue mDistance;
+    private TelemetryRegistry mRegistry;
+    private LoopbackTransport mTransport;
+    private LoopbackTransport mCar;
+
+    @Setup
+    public void setUp() throws IOException {
+        Random random = new Random(42);
+        int pos = 0;
+        int frames = 0;
+        while (pos + DistanceFrame.LENGTH <= STREAM_LENGTH) {
+            if (++frames % GARBAGE_INTERVAL == 0) {
+                mStream[pos++] = (byte) random.nextInt(256);
+                continue;
+            }
+            mStream[pos++] = (byte) DistanceFrame.TAG;
+            mStream[pos++] = (byte) random.nextInt(11);
+            mStream[pos++] = (byte) random.nextInt(10);
+            mStream[pos++] = (byte) random.nextInt(10);
+        }
+        mRing = new ByteRingBuffer(1024);
+        mSplitter = new TelemetryFrameSplitter();
+        mBatch = new TelemetryFrameBatch(64, 1024);
+        mDistance = new TelemetryValue();
+        mRegistry = new TelemetryRegistry();
+        mTransport = new LoopbackTransport("bench", 1024);
+        mTransport.open();
+        mCar = mTransport.getPeer();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        mTransport.close();
+    }
+
+    private void decode() {
+        boolean batchFull;
+        do {
+            batchFull = mSplitter.split(mRing, mBatch);
+            int latest = -1;
+            for (int i = 0; i < mBatch.getFrameCount(); i++) {
+                if (mBatch.getTag(i) == DistanceFrame.TAG) latest = i;
+            }
+            if (latest >= 0) mDistance.publish(DistanceFrame.decodeCentimeters(mBatch, latest));
+            mBatch.clear();
+        } while (batchFull);
+    }
+
+    private int nextChunk() {
+        int offset = mPosition;
+        mPosition = (mPosition + CHUNK_SIZE) % STREAM_LENGTH;
+        return offset;
+    }
+
+    @Benchmark
+    public long splitAndDecode() {
+        mRing.write(mStream, nextChunk(), CHUNK_SIZE);
+        decode();
+        return mDistance.snapshot();
+    }
+
+    @Benchmark
+    public long splitAndDispatch() {
+        mRing.write(mStream, nextChunk(), CHUNK_SIZE);
+        boolean batchFull;
+        do {
+            batchFull = mSplitter.split(mRing, mBatch);
+            mRegistry.dispatch(mBatch);
+            mBatch.clear();
+        } while (batchFull);
+        return mRegistry.getValue(DistanceFrame.TAG, 0).snapshot();
+    }
+
+    @Benchmark
+    public long loopback() throws IOException {
+        mCar.write(mStream, nextChunk(), CHUNK_SIZE);
+        /* Two reads at most, when the chunk wraps around the end of the ring */
+        for (int received = 0; received < CHUNK_SIZE; ) {
+            int count = mTransport.read(mRing.getArray(), mRing.getWritePosition(),
+                    Math.min(mRing.getContiguousFree(), CHUNK_SIZE - received));
+            mRing.commitWrite(count);
+            received += count;
+        }
+        decode();
+        return mDistance.snapshot();
+    }
+}
@@ -0,0 +1,97 @@
+package org.hamster.carz;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A finger wobbling around the edge of the dead-band must not make the speed flip.
+ * Mapper and filter together, like BluetoothCommandSender drives them.
+ */
+public class MotorSpeedMapperTest {
+    private static final int HEIGHT = 1000;
+    private static final int START_Y = 800;
+    private static final int TICK_MS = 20;
+    /**
+     * Keeps the right finger far enough from the left one that both aren't straightened.
+     */
+    private static final int RIGHT_DELTA = 500;
+
+    private MotorSpeedMapper mMapper;
+    private MotorSpeedFilter mFilter;
+    private long mNow;
+
+    @Before
+    public void setUp() {
+        mMapper = new MotorSpeedMapper();
+        mFilter = new MotorSpeedFilter();
+        mNow = 1000;
+    }
+
+    private int tick(int leftDelta) {
+        mMapper.map(START_Y, START_Y - leftDelta, START_Y, START_Y - RIGHT_DELTA, HEIGHT);
+        mFilter.update(mMapper.getLeftSpeed(), mMapper.getRightSpeed(), mNow);
+        mNow += TICK_MS;
+        return mFilter.getLeftSpeed();
+    }
+
+    @Test
+    public void wobbleAtEngageEdgeKeepsSpeed() {
+        for (int i = 0; i < 10; i++) tick(120); /* Past the edge, settled */
+        int settled = tick(102);
+        for (int i = 0; i < 50; i++) {
+            assertEquals(settled, tick(i % 2 == 0 ? 98 : 102));
+        }
+    }
+
+    @Test
+    public void wobbleAtReleaseEdgeStaysAtMinimum() {
+        for (int i = 0; i < 10; i++) tick(120);
+        for (int i = 0; i < 10; i++) tick(50); /* Back into the dead-band */
+        assertEquals(MotorSpeedMapper.MIN_VALUE, tick(58));
+        for (int i = 0; i < 50; i++) {
+            assertEquals(MotorSpeedMapper.MIN_VALUE, tick(i % 2 == 0 ? 58 : 62));
+        }
+    }
+
+    @Test
+    public void restingFingersMapToMinimumBeforeAndAfterAPush() {
+        int before = tick(0);
+        for (int i = 0; i < 10; i++) tick(300);
+        for (int i = 0; i < 10; i++) tick(0);
+        assertEquals(MotorSpeedMapper.MIN_VALUE, before);
+        assertEquals(before, tick(0));
+    }
+
+    @Test
+    public void stoppedSideStandsStillWhileTheOtherRuns() {
+        for (int i = 0; i < 10; i++) tick(300);
+        mMapper.map(START_Y, START_Y, START_Y, START_Y - RIGHT_DELTA, HEIGHT, true, false);
+        mFilter.update(mMapper.getLeftSpeed(), mMapper.getRightSpeed(), mNow);
+        assertEquals(0, mFilter.getLeftSpeed());
+        assertTrue(mFilter.getRightSpeed() > MotorSpeedMapper.MIN_VALUE);
+    }
+
+    @Test
+    public void smallBackwardDeflectionOfAStickStops() {
+        /* 5% back on both sides: a finger would creep forward at MIN_VALUE, a stick stops */
+        mMapper.map(START_Y, START_Y + 50, START_Y, START_Y + 50, HEIGHT, true, true);
+        assertEquals(0, mMapper.getLeftSpeed());
+        assertEquals(0, mMapper.getRightSpeed());
+        mMapper.map(START_Y, START_Y + 50, START_Y, START_Y + 50, HEIGHT);
+        assertEquals(MotorSpeedMapper.MIN_VALUE, mMapper.getLeftSpeed());
+    }
+
+    @Test
+    public void stickKeepsHysteresisInsideTheDeadBand() {
+        /* Engaged backwards, then back to 8%: still inside the release band, keeps running */
+        mMapper.map(START_Y, START_Y + 150, START_Y, START_Y, HEIGHT, true, true);
+        mMapper.map(START_Y, START_Y + 80, START_Y, START_Y, HEIGHT, true, true);
+        assertTrue(mMapper.getLeftSpeed() < -MotorSpeedMapper.MIN_VALUE);
+        assertEquals(0, mMapper.getRightSpeed());
+        mMapper.map(START_Y, START_Y + 50, START_Y, START_Y, HEIGHT, true, true);
+        assertEquals(0, mMapper.getLeftSpeed());
+    }
+}
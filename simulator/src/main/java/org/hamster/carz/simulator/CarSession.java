@@ -0,0 +1,84 @@
+package org.hamster.carz.simulator;
+
+import org.hamster.carz.CarTransport;
+
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * One phone talking to one simulated car over a {@link CarTransport}: a TCP connection
+ * from {@link CarSimulator}, or the peer of a LoopbackTransport for in-process tests.
+ * <p/>
+ * transport -> uplink (impaired) -> {@link SimulatedCar} -> downlink (impaired) -> transport
+ */
+public class CarSession implements Runnable {
+    private final int mId;
+    private final CarTransport mTransport;
+    private final SimulatorConfig mConfig;
+    private final CommandLog mLog;
+
+    public CarSession(int id, CarTransport transport, SimulatorConfig config, CommandLog log) {
+        mId = id;
+        mTransport = transport;
+        mConfig = config;
+        mLog = log;
+    }
+
+    /**
+     * Runs until the phone disconnects.
+     */
+    @Override
+    public void run() {
+        Random random = new Random(mConfig.seed + mId);
+        ImpairedLink downlink = new ImpairedLink("Car" + mId + "-Down", mConfig.link, random,
+                new ImpairedLink.Sink() {
+                    @Override
+                    public void deliver(byte[] data, int offset, int length) throws IOException {
+                        mTransport.write(data, offset, length);
+                    }
+
+                    @Override
+                    public void onLinkBroken(IOException e) {
+                        closeQuietly();
+                    }
+                });
+        SimulatedCar car = new SimulatedCar(mId, downlink, mLog, mConfig.supportsV2,
+                mConfig.maxRateHz, mConfig.telemetryHz);
+        ImpairedLink uplink = new ImpairedLink("Car" + mId + "-Up", mConfig.link, random, car);
+
+        log("connected " + mTransport.getDisplayName() + ", " + mConfig.link);
+        downlink.start();
+        uplink.start();
+        car.start();
+        byte[] buffer = new byte[256];
+        try {
+            mTransport.open();
+            while (true) {
+                int count = mTransport.read(buffer, 0, buffer.length);
+                if (count < 0) break;
+                uplink.send(buffer, 0, count);
+            }
+        } catch (IOException e) {
+            log("link closed: " + e.getMessage());
+        } finally {
+            car.stop();
+            uplink.close();
+            downlink.close();
+            closeQuietly();
+        }
+        log(car.getSummary() + ", corrupted up/down " + uplink.getCorruptedByteCount()
+                + "/" + downlink.getCorruptedByteCount() + "B");
+    }
+
+    private void closeQuietly() {
+        try {
+            mTransport.close();
+        } catch (IOException e) {
+            // Already gone
+        }
+    }
+
+    private void log(String message) {
+        System.out.println("[car " + mId + "] " + message);
+    }
+}
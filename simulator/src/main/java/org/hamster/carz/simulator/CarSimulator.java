@@ -0,0 +1,149 @@
+package org.hamster.carz.simulator;
+
+import org.hamster.carz.CarTransport;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * Simulated car firmware on a plain JVM. Every TCP connection gets its own car, so the app
+ * (with a TcpTransport) or a soak test can drive as many cars as it likes.
+ * <p/>
+ * Usage: CarSimulator [options]
+ * <pre>
+ *   --port N          TCP port, default 9000
+ *   --bandwidth N     Link bytes per second each way, 0 for unlimited. Default 11520
+ *   --latency MS      One-way delay, default 20
+ *   --jitter MS       Extra random delay 0~MS, default 10
+ *   --corrupt P       Chance of a bit flip per byte, default 0
+ *   --legacy          Old firmware: ignore the ProtocolV2 handshake
+ *   --max-rate HZ     Command rate announced in the handshake, default 50
+ *   --telemetry HZ    Distance frames per second, default 10
+ *   --seed N          Random seed for jitter and corruption, default 1
+ *   --log FILE        Write every received command to FILE (CSV)
+ * </pre>
+ */
+public class CarSimulator {
+    private static final int DEFAULT_PORT = 9000;
+
+    public static void main(String[] args) throws IOException {
+        SimulatorConfig config = new SimulatorConfig();
+        int port = DEFAULT_PORT;
+        String logFile = null;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if (arg.equals("--port")) {
+                    port = Integer.parseInt(args[++i]);
+                } else if (arg.equals("--bandwidth")) {
+                    config.link.bytesPerSecond = Integer.parseInt(args[++i]);
+                } else if (arg.equals("--latency")) {
+                    config.link.latencyMs = Integer.parseInt(args[++i]);
+                } else if (arg.equals("--jitter")) {
+                    config.link.jitterMs = Integer.parseInt(args[++i]);
+                } else if (arg.equals("--corrupt")) {
+                    config.link.corruptionProbability = Double.parseDouble(args[++i]);
+                } else if (arg.equals("--legacy")) {
+                    config.supportsV2 = false;
+                } else if (arg.equals("--max-rate")) {
+                    config.maxRateHz = Integer.parseInt(args[++i]);
+                } else if (arg.equals("--telemetry")) {
+                    config.telemetryHz = Integer.parseInt(args[++i]);
+                } else if (arg.equals("--seed")) {
+                    config.seed = Long.parseLong(args[++i]);
+                } else if (arg.equals("--log")) {
+                    logFile = args[++i];
+                } else {
+                    usage("Unknown option " + arg);
+                    return;
+                }
+            }
+        } catch (NumberFormatException e) {
+            usage("Bad number: " + e.getMessage());
+            return;
+        } catch (ArrayIndexOutOfBoundsException e) {
+            usage("Missing value for the last option");
+            return;
+        }
+
+        final CommandLog log = new CommandLog(logFile == null ? null : new FileWriter(logFile));
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                System.out.println(log.getCommandCount() + " commands received");
+                try {
+                    log.close();
+                } catch (IOException e) {
+                    // Exiting anyway
+                }
+            }
+        });
+
+        ServerSocket server = new ServerSocket(port);
+        System.out.println("Car simulator listening on port " + port
+                + (config.supportsV2 ? "" : " (legacy firmware)"));
+        int nextId = 1;
+        while (true) {
+            Socket socket = server.accept();
+            socket.setTcpNoDelay(true);
+            CarSession session = new CarSession(nextId, new SocketTransport(socket), config, log);
+            new Thread(session, "Car" + nextId + "-Reader").start();
+            nextId++;
+        }
+    }
+
+    private static void usage(String error) {
+        System.err.println(error);
+        System.err.println("Usage: CarSimulator [--port N] [--bandwidth BYTES_PER_S] [--latency MS]"
+                + " [--jitter MS] [--corrupt P] [--legacy] [--max-rate HZ] [--telemetry HZ]"
+                + " [--seed N] [--log FILE]");
+    }
+
+    /**
+     * Server side of an accepted connection. Already open.
+     */
+    private static class SocketTransport implements CarTransport {
+        private final Socket mSocket;
+        private final InputStream mInputStream;
+        private final OutputStream mOutputStream;
+
+        SocketTransport(Socket socket) throws IOException {
+            mSocket = socket;
+            mInputStream = socket.getInputStream();
+            mOutputStream = socket.getOutputStream();
+        }
+
+        @Override
+        public void open() {
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            return mInputStream.read(buffer, offset, length);
+        }
+
+        @Override
+        public void write(byte[] data, int offset, int length) throws IOException {
+            mOutputStream.write(data, offset, length);
+        }
+
+        @Override
+        public void close() throws IOException {
+            mSocket.close();
+        }
+
+        @Override
+        public String getAddress() {
+            return mSocket.getRemoteSocketAddress().toString();
+        }
+
+        @Override
+        public String getDisplayName() {
+            return "TCP " + getAddress();
+        }
+    }
+}
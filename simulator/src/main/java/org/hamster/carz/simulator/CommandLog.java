@@ -0,0 +1,44 @@
+package org.hamster.carz.simulator;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+
+/**
+ * Records every motor command the simulated cars receive, as CSV:
+ * <p/>
+ * time_us,car,protocol,left,right
+ * <p/>
+ * time_us counts from the creation of the log, at the moment the command reached the car
+ * (after link impairment). Shared by all cars, so calls are synchronized.
+ */
+public class CommandLog implements Closeable {
+    private final long mStartNanos = System.nanoTime();
+    private final PrintWriter mWriter;
+    private long mCommandCount;
+
+    /**
+     * @param out null to only count commands
+     */
+    public CommandLog(Writer out) {
+        mWriter = out == null ? null : new PrintWriter(out);
+        if (mWriter != null) mWriter.println("time_us,car,protocol,left,right");
+    }
+
+    public synchronized void record(int carId, int protocolVersion, int left, int right) {
+        mCommandCount++;
+        if (mWriter == null) return;
+        long micros = (System.nanoTime() - mStartNanos) / 1000;
+        mWriter.println(micros + "," + carId + "," + protocolVersion + "," + left + "," + right);
+    }
+
+    public synchronized long getCommandCount() {
+        return mCommandCount;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (mWriter != null) mWriter.close();
+    }
+}
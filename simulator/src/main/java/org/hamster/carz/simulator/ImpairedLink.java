@@ -0,0 +1,121 @@
+package org.hamster.carz.simulator;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One direction of a simulated link. Bytes passed to send() come out of the sink later,
+ * delayed by serialization at the configured bandwidth plus latency and jitter, and maybe
+ * with flipped bits.
+ * <p/>
+ * Delivery times never go backwards, so like a serial line the link delays but never
+ * reorders. Delivery runs on its own thread.
+ */
+public class ImpairedLink {
+    private final LinkProfile mProfile;
+    private final Random mRandom;
+    private final Sink mSink;
+    private final LinkedBlockingQueue<Chunk> mQueue = new LinkedBlockingQueue<Chunk>();
+    private final Thread mDeliveryThread;
+    private long mBusyUntilNanos;
+    private long mLastDueNanos;
+    private volatile long mCorruptedByteCount;
+
+    public ImpairedLink(String name, LinkProfile profile, Random random, Sink sink) {
+        mProfile = profile;
+        mRandom = random;
+        mSink = sink;
+        mDeliveryThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                deliverLoop();
+            }
+        }, name);
+        mDeliveryThread.setDaemon(true);
+    }
+
+    public void start() {
+        mDeliveryThread.start();
+    }
+
+    /**
+     * Drop everything in flight and stop delivering.
+     */
+    public void close() {
+        mDeliveryThread.interrupt();
+        try {
+            mDeliveryThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Put bytes on the link. data is copied.
+     */
+    public synchronized void send(byte[] data, int offset, int length) {
+        long now = System.nanoTime();
+        long start = Math.max(now, mBusyUntilNanos);
+        if (mProfile.bytesPerSecond > 0) {
+            mBusyUntilNanos = start + length * 1000000000L / mProfile.bytesPerSecond;
+        } else {
+            mBusyUntilNanos = start;
+        }
+        long delayMs = mProfile.latencyMs;
+        if (mProfile.jitterMs > 0) delayMs += mRandom.nextInt(mProfile.jitterMs + 1);
+        long due = Math.max(mBusyUntilNanos + TimeUnit.MILLISECONDS.toNanos(delayMs), mLastDueNanos);
+        mLastDueNanos = due;
+
+        byte[] copy = new byte[length];
+        System.arraycopy(data, offset, copy, 0, length);
+        if (mProfile.corruptionProbability > 0) {
+            for (int i = 0; i < length; i++) {
+                if (mRandom.nextDouble() < mProfile.corruptionProbability) {
+                    copy[i] ^= 1 << mRandom.nextInt(8);
+                    mCorruptedByteCount++;
+                }
+            }
+        }
+        mQueue.add(new Chunk(copy, due));
+    }
+
+    public long getCorruptedByteCount() {
+        return mCorruptedByteCount;
+    }
+
+    private void deliverLoop() {
+        try {
+            while (true) {
+                Chunk chunk = mQueue.take();
+                long wait = chunk.dueNanos - System.nanoTime();
+                if (wait > 0) TimeUnit.NANOSECONDS.sleep(wait);
+                mSink.deliver(chunk.data, 0, chunk.data.length);
+            }
+        } catch (InterruptedException e) {
+            // close()
+        } catch (IOException e) {
+            mSink.onLinkBroken(e);
+        }
+    }
+
+    private static class Chunk {
+        final byte[] data;
+        final long dueNanos;
+
+        Chunk(byte[] data, long dueNanos) {
+            this.data = data;
+            this.dueNanos = dueNanos;
+        }
+    }
+
+    /**
+     * Receives bytes at the far end, on the delivery thread.
+     */
+    public interface Sink {
+        void deliver(byte[] data, int offset, int length) throws IOException;
+
+        void onLinkBroken(IOException e);
+    }
+}
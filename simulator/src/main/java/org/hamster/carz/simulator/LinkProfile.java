@@ -0,0 +1,35 @@
+package org.hamster.carz.simulator;
+
+/**
+ * How bad the simulated radio link is. Applies to both directions.
+ */
+public class LinkProfile {
+    /**
+     * HC-05 style modules talk to the MCU at 115200 baud 8N1, about 11.5KB/s.
+     */
+    public static final int DEFAULT_BYTES_PER_SECOND = 11520;
+
+    /**
+     * 0 for unlimited
+     */
+    public int bytesPerSecond = DEFAULT_BYTES_PER_SECOND;
+    /**
+     * One-way delay added to every chunk
+     */
+    public int latencyMs = 20;
+    /**
+     * Extra delay, uniformly distributed in [0, jitterMs]. Bytes are never reordered.
+     */
+    public int jitterMs = 10;
+    /**
+     * Chance of one bit flip per byte
+     */
+    public double corruptionProbability;
+
+    @Override
+    public String toString() {
+        return (bytesPerSecond > 0 ? bytesPerSecond + "B/s" : "unlimited")
+                + ", latency " + latencyMs + "ms +" + jitterMs + "ms"
+                + ", corruption " + corruptionProbability;
+    }
+}
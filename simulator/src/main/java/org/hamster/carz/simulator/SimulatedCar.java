@@ -0,0 +1,219 @@
+package org.hamster.carz.simulator;
+
+import org.hamster.carz.BatteryFrame;
+import org.hamster.carz.ByteRingBuffer;
+import org.hamster.carz.DistanceFrame;
+import org.hamster.carz.MotorCurrentFrame;
+import org.hamster.carz.ProtocolV2;
+import org.hamster.carz.TelemetryFrameBatch;
+import org.hamster.carz.TelemetryFrameSplitter;
+import org.hamster.carz.WheelSpeedFrame;
+
+import java.io.IOException;
+
+/**
+ * The firmware side of one car.
+ * <p/>
+ * Takes the command stream (legacy 'H' 'S' L R, or ProtocolV2 after a handshake), drives
+ * a toy model of the car towards a wall, and reports the distance ahead in 'D' frames at
+ * a fixed rate. Commands come in through {@link #deliver}, telemetry goes out through the
+ * downlink.
+ */
+public class SimulatedCar implements ImpairedLink.Sink {
+    private static final int LEGACY_COMMAND_LENGTH = 4;
+    /**
+     * Wheel speed at full throttle (127)
+     */
+    private static final int MAX_SPEED_CM_PER_S = 100;
+    private static final int START_DISTANCE_CM = 150;
+    /**
+     * Beyond this the sensor sees nothing
+     */
+    private static final int MAX_DISTANCE_CM = 999;
+
+    private final int mId;
+    private final ImpairedLink mDownlink;
+    private final CommandLog mLog;
+    private final boolean mSupportsV2;
+    private final int mMaxRateHz;
+    private final int mTelemetryHz;
+
+    private final ByteRingBuffer mRing = new ByteRingBuffer(1024);
+    private final TelemetryFrameSplitter mSplitter = new TelemetryFrameSplitter();
+    private final ProtocolV2.Unwrapper mUnwrapper = new ProtocolV2.Unwrapper();
+    private final TelemetryFrameBatch mBatch = new TelemetryFrameBatch(64, 1024);
+    private final byte[] mTxFrame = new byte[ProtocolV2.MAX_FRAME_LENGTH];
+    private int mTxSeq;
+    private Thread mTelemetryThread;
+
+    private volatile int mProtocolVersion = ProtocolV2.LEGACY_VERSION;
+    private volatile int mLeftSpeed;
+    private volatile int mRightSpeed;
+    private volatile boolean mBroken;
+    private volatile int mOverflowByteCount;
+
+    /**
+     * @param supportsV2  false to behave like old firmware and ignore HELLO
+     * @param maxRateHz   Max command rate announced in HELLO_ACK
+     * @param telemetryHz Distance frames per second, 0 for none
+     */
+    public SimulatedCar(int id, ImpairedLink downlink, CommandLog log, boolean supportsV2,
+                        int maxRateHz, int telemetryHz) {
+        mId = id;
+        mDownlink = downlink;
+        mLog = log;
+        mSupportsV2 = supportsV2;
+        mMaxRateHz = maxRateHz;
+        mTelemetryHz = telemetryHz;
+        /* Parse commands instead of telemetry */
+        mSplitter.setFrameFormat(DistanceFrame.TAG, 0, null);
+        mSplitter.setFrameFormat(BatteryFrame.TAG, 0, null);
+        mSplitter.setFrameFormat(MotorCurrentFrame.TAG, 0, null);
+        mSplitter.setFrameFormat(WheelSpeedFrame.TAG, 0, null);
+        mSplitter.setFrameFormat('H', LEGACY_COMMAND_LENGTH,
+                new TelemetryFrameSplitter.FrameValidator() {
+                    @Override
+                    public boolean isValid(ByteRingBuffer ring, int length) {
+                        return ring.peek(1) == 'S';
+                    }
+                });
+        if (mSupportsV2) mSplitter.setFrameUnwrapper(ProtocolV2.SOF, mUnwrapper);
+    }
+
+    public void start() {
+        if (mTelemetryHz <= 0) return;
+        mTelemetryThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                telemetryLoop();
+            }
+        }, "Car" + mId + "-Telemetry");
+        mTelemetryThread.setDaemon(true);
+        mTelemetryThread.start();
+    }
+
+    public void stop() {
+        if (mTelemetryThread == null) return;
+        mTelemetryThread.interrupt();
+        try {
+            mTelemetryThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Command bytes arriving from the phone, on the uplink delivery thread.
+     */
+    @Override
+    public void deliver(byte[] data, int offset, int length) {
+        int written = mRing.write(data, offset, length);
+        mOverflowByteCount += length - written;
+        boolean batchFull;
+        do {
+            batchFull = mSplitter.split(mRing, mBatch);
+            for (int i = 0; i < mBatch.getFrameCount(); i++) {
+                handleFrame(i);
+            }
+            mBatch.clear();
+        } while (batchFull);
+    }
+
+    @Override
+    public void onLinkBroken(IOException e) {
+        mBroken = true;
+    }
+
+    private void handleFrame(int i) {
+        int tag = mBatch.getTag(i);
+        int length = mBatch.getLength(i);
+        if (tag == 'H' && length == LEGACY_COMMAND_LENGTH) {
+            setSpeeds(ProtocolV2.LEGACY_VERSION, (byte) mBatch.getByte(i, 2), (byte) mBatch.getByte(i, 3));
+        } else if (tag == ProtocolV2.TYPE_HELLO && length == 3) {
+            /* Unwrapped HELLO: type, version, rate */
+            int version = Math.min(mBatch.getByte(i, 1), ProtocolV2.VERSION);
+            sendHelloAck(version);
+            mProtocolVersion = version;
+        } else if (tag == ProtocolV2.TYPE_MOTOR && length == 3) {
+            setSpeeds(ProtocolV2.VERSION, (byte) mBatch.getByte(i, 1), (byte) mBatch.getByte(i, 2));
+        } else if (tag == ProtocolV2.TYPE_PING && length == 3) {
+            sendPingEcho(mBatch.getByte(i, 1), mBatch.getByte(i, 2));
+        }
+    }
+
+    private void setSpeeds(int version, int left, int right) {
+        mLeftSpeed = left;
+        mRightSpeed = right;
+        mLog.record(mId, version, left, right);
+    }
+
+    private synchronized void sendHelloAck(int version) {
+        ProtocolV2.writeHeader(mTxFrame, ProtocolV2.TYPE_HELLO_ACK, mTxSeq++, 2);
+        mTxFrame[ProtocolV2.HEADER_LENGTH] = (byte) version;
+        mTxFrame[ProtocolV2.HEADER_LENGTH + 1] = (byte) mMaxRateHz;
+        mDownlink.send(mTxFrame, 0, ProtocolV2.finish(mTxFrame, 2));
+    }
+
+    private synchronized void sendPingEcho(int id1, int id0) {
+        ProtocolV2.writeHeader(mTxFrame, ProtocolV2.TYPE_PING_ECHO, mTxSeq++, 2);
+        mTxFrame[ProtocolV2.HEADER_LENGTH] = (byte) id1;
+        mTxFrame[ProtocolV2.HEADER_LENGTH + 1] = (byte) id0;
+        mDownlink.send(mTxFrame, 0, ProtocolV2.finish(mTxFrame, 2));
+    }
+
+    private synchronized void sendDistance(int centimeters) {
+        int d0 = centimeters > MAX_DISTANCE_CM ? 10 : centimeters / 100;
+        int d1 = centimeters / 10 % 10;
+        int d2 = centimeters % 10;
+        if (mProtocolVersion >= ProtocolV2.VERSION) {
+            ProtocolV2.writeHeader(mTxFrame, DistanceFrame.TAG, mTxSeq++, 3);
+            mTxFrame[ProtocolV2.HEADER_LENGTH] = (byte) d0;
+            mTxFrame[ProtocolV2.HEADER_LENGTH + 1] = (byte) d1;
+            mTxFrame[ProtocolV2.HEADER_LENGTH + 2] = (byte) d2;
+            mDownlink.send(mTxFrame, 0, ProtocolV2.finish(mTxFrame, 3));
+        } else {
+            mTxFrame[0] = DistanceFrame.TAG;
+            mTxFrame[1] = (byte) d0;
+            mTxFrame[2] = (byte) d1;
+            mTxFrame[3] = (byte) d2;
+            mDownlink.send(mTxFrame, 0, DistanceFrame.LENGTH);
+        }
+    }
+
+    private void telemetryLoop() {
+        long periodNanos = 1000000000L / mTelemetryHz;
+        long next = System.nanoTime();
+        double distanceCm = START_DISTANCE_CM;
+        try {
+            while (!mBroken) {
+                next += periodNanos;
+                long wait = next - System.nanoTime();
+                if (wait > 0) Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                /* Average of both wheels moves the car, forward is towards the wall */
+                double speed = (mLeftSpeed + mRightSpeed) / 2.0 / 127 * MAX_SPEED_CM_PER_S;
+                distanceCm -= speed / mTelemetryHz;
+                if (distanceCm < 0) distanceCm = 0; // Bumped into it
+                if (distanceCm > MAX_DISTANCE_CM + 1) distanceCm = MAX_DISTANCE_CM + 1;
+                sendDistance((int) distanceCm);
+            }
+        } catch (InterruptedException e) {
+            // stop()
+        }
+    }
+
+    public int getProtocolVersion() {
+        return mProtocolVersion;
+    }
+
+    public boolean isBroken() {
+        return mBroken;
+    }
+
+    public String getSummary() {
+        return "car " + mId + ": v" + mProtocolVersion
+                + ", lost " + mUnwrapper.getLostFrameCount()
+                + ", crc errors " + mUnwrapper.getCrcErrorCount()
+                + ", garbage " + mSplitter.getGarbageByteCount() + "B"
+                + ", overflow " + mOverflowByteCount + "B";
+    }
+}
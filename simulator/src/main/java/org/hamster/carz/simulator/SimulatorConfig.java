@@ -0,0 +1,22 @@
+package org.hamster.carz.simulator;
+
+/**
+ * Everything configurable about the simulated cars, see {@link CarSimulator} for the
+ * command line.
+ */
+public class SimulatorConfig {
+    public final LinkProfile link = new LinkProfile();
+    /**
+     * false to behave like old firmware that only knows 'H' 'S' L R
+     */
+    public boolean supportsV2 = true;
+    /**
+     * Max command rate announced in HELLO_ACK
+     */
+    public int maxRateHz = 50;
+    public int telemetryHz = 10;
+    /**
+     * Same seed, same jitter and corruption pattern
+     */
+    public long seed = 1;
+}